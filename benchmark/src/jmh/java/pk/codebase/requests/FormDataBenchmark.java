@@ -0,0 +1,84 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2016-2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pk.codebase.requests;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Multipart uploads of a file, to track the cost of the {@link FormData} write path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FormDataBenchmark {
+
+    @Param({"65536", "8388608"})
+    public int fileSize;
+
+    private LocalServer mServer;
+    private String mUploadUrl;
+    private File mFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mServer = new LocalServer();
+        mUploadUrl = mServer.url("/upload");
+        mFile = File.createTempFile("upload", ".bin");
+        byte[] chunk = new byte[8192];
+        FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            for (int written = 0; written < fileSize; written += chunk.length) {
+                out.write(chunk, 0, Math.min(chunk.length, fileSize - written));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mServer.stop();
+        mFile.delete();
+    }
+
+    @Benchmark
+    public byte[] upload() throws HttpError {
+        FormData data = new FormData();
+        data.put("name", "benchmark");
+        data.put("file", mFile);
+        HttpHeaders headers = new HttpHeaders();
+        headers.put("Content-Type", "multipart/form-data; boundary=" + FormData.BOUNDARY);
+        return new HttpBase().request("POST", mUploadUrl, data, headers, new HttpOptions(),
+                null).content;
+    }
+}
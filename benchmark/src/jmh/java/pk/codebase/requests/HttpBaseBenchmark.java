@@ -0,0 +1,110 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2016-2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pk.codebase.requests;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trips through {@link HttpBase} against a loopback server, reported both as throughput
+ * and as a latency distribution.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HttpBaseBenchmark {
+
+    private LocalServer mServer;
+    private String mSmallUrl;
+    private String mLargeUrl;
+    private String mUploadUrl;
+    private final byte[] mReadBuffer = new byte[8192];
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mServer = new LocalServer();
+        mSmallUrl = mServer.url("/small");
+        mLargeUrl = mServer.url("/large");
+        mUploadUrl = mServer.url("/upload");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mServer.stop();
+    }
+
+    @Benchmark
+    public byte[] getSmall() throws HttpError {
+        return get(mSmallUrl, new HttpOptions()).content;
+    }
+
+    @Benchmark
+    public byte[] getLarge() throws HttpError {
+        return get(mLargeUrl, new HttpOptions()).content;
+    }
+
+    @Benchmark
+    public long getLargeStreamed() throws HttpError, IOException {
+        HttpResponse response = get(mLargeUrl, new HttpOptions().setStream(true));
+        long total = 0;
+        try {
+            InputStream in = response.body.getInputStream();
+            int read;
+            while ((read = in.read(mReadBuffer)) != -1) {
+                total += read;
+            }
+        } finally {
+            response.body.close();
+        }
+        return total;
+    }
+
+    @Benchmark
+    public byte[] postJson() throws HttpError {
+        return new HttpBase().request("POST", mUploadUrl, Payloads.ITEMS, newJsonHeaders(),
+                new HttpOptions(), null).content;
+    }
+
+    @Benchmark
+    public byte[] postJsonChunked() throws HttpError {
+        return new HttpBase().request("POST", mUploadUrl, Payloads.ITEMS, newJsonHeaders(),
+                new HttpOptions().setChunked(true), null).content;
+    }
+
+    private static HttpResponse get(String url, HttpOptions options) throws HttpError {
+        return new HttpBase().request("GET", url, null, new HttpHeaders(), options, null);
+    }
+
+    private static HttpHeaders newJsonHeaders() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.put("Content-Type", "application/json");
+        return headers;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2016-2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pk.codebase.requests;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+
+import org.json.JSONArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding responses and encoding payloads, without any I/O. Run with the gc profiler to see
+ * the allocation rate of each path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class JsonBenchmark {
+
+    private static final TypeReference<List<Payloads.Item>> ITEM_LIST =
+            new TypeReference<List<Payloads.Item>>() {};
+
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    private final JsonCodec mCodec = JsonCodec.getDefault();
+    private final HttpHeaders mHeaders = newHeaders();
+
+    // Responses memoize what they parsed, so each invocation needs a fresh one.
+    private HttpResponse newResponse() {
+        return new HttpResponse(200, "OK", mHeaders, Payloads.ITEMS_JSON, "http://localhost/json",
+                mCodec);
+    }
+
+    @Benchmark
+    public String getText() {
+        return newResponse().getText();
+    }
+
+    @Benchmark
+    public JSONArray toJSONArray() {
+        return newResponse().toJSONArray();
+    }
+
+    @Benchmark
+    public List<Payloads.Item> toPOJOList() {
+        return newResponse().toPOJO(ITEM_LIST);
+    }
+
+    @Benchmark
+    public Payloads.Item[] toPOJOArray() {
+        return newResponse().toPOJO(Payloads.Item[].class);
+    }
+
+    @Benchmark
+    public long serializePOJO() throws Exception {
+        RequestBody body = RequestBody.create(Payloads.ITEMS, mCodec, false);
+        body.writeTo(DISCARD);
+        return body.getContentLength();
+    }
+
+    @Benchmark
+    public void serializePOJOStreaming() throws Exception {
+        RequestBody.create(Payloads.ITEMS, mCodec, true).writeTo(DISCARD);
+    }
+
+    private static HttpHeaders newHeaders() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.put("Content-Type", "application/json; charset=utf-8");
+        return headers;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2016-2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pk.codebase.requests;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * In-process stand-in for a backend, so that benchmarks measure the client and not the network.
+ */
+class LocalServer {
+
+    static final int SMALL_SIZE = 1024;
+    static final int LARGE_SIZE = 4 * 1024 * 1024;
+
+    private final HttpServer mServer;
+    private final ExecutorService mExecutor;
+
+    LocalServer() throws IOException {
+        // Otherwise Nagle's algorithm on the server adds ~40ms to every small response.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mExecutor = Executors.newFixedThreadPool(4);
+        mServer.setExecutor(mExecutor);
+        mServer.createContext("/small", new FixedHandler(newBody(SMALL_SIZE), "text/plain"));
+        mServer.createContext("/large", new FixedHandler(newBody(LARGE_SIZE), "text/plain"));
+        mServer.createContext("/json", new FixedHandler(Payloads.ITEMS_JSON, "application/json"));
+        mServer.createContext("/upload", new DrainHandler());
+        mServer.start();
+    }
+
+    String url(String path) {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + path;
+    }
+
+    void stop() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    private static byte[] newBody(int size) {
+        byte[] body = new byte[size];
+        for (int i = 0; i < size; i++) {
+            body[i] = (byte) ('a' + i % 26);
+        }
+        return body;
+    }
+
+    private static class FixedHandler implements HttpHandler {
+        private final byte[] mBody;
+        private final String mContentType;
+
+        FixedHandler(byte[] body, String contentType) {
+            mBody = body;
+            mContentType = contentType;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            drain(exchange.getRequestBody());
+            exchange.getResponseHeaders().set("Content-Type", mContentType);
+            exchange.sendResponseHeaders(200, mBody.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(mBody);
+            out.close();
+        }
+    }
+
+    // Replies with the number of bytes received.
+    private static class DrainHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            byte[] body = String.valueOf(drain(exchange.getRequestBody())).getBytes("UTF-8");
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        }
+    }
+
+    private static long drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        long total = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            total += read;
+        }
+        in.close();
+        return total;
+    }
+}
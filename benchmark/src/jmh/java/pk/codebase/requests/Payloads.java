@@ -0,0 +1,68 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2016-2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pk.codebase.requests;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shared JSON fixtures, a list of small objects like a typical API page.
+ */
+class Payloads {
+
+    static final int ITEM_COUNT = 100;
+    static final List<Item> ITEMS = newItems();
+    static final byte[] ITEMS_JSON = toJson(ITEMS);
+
+    public static class Item {
+        public long id;
+        public String name;
+        public String email;
+        public boolean active;
+        public double score;
+        public List<String> tags;
+    }
+
+    private static List<Item> newItems() {
+        List<Item> items = new ArrayList<>(ITEM_COUNT);
+        for (int i = 0; i < ITEM_COUNT; i++) {
+            Item item = new Item();
+            item.id = i;
+            item.name = "User " + i;
+            item.email = "user" + i + "@example.com";
+            item.active = i % 2 == 0;
+            item.score = i * 1.5;
+            item.tags = new ArrayList<>();
+            item.tags.add("tag" + i % 7);
+            item.tags.add("group" + i % 3);
+            items.add(item);
+        }
+        return items;
+    }
+
+    private static byte[] toJson(List<Item> items) {
+        try {
+            return JsonCodec.getDefault().getMapper().writeValueAsString(items)
+                    .getBytes(Charset.forName("UTF-8"));
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
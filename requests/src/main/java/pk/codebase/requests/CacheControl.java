@@ -0,0 +1,125 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2016-2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pk.codebase.requests;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Cache-Control directives, plus the freshness rules derived from them, that matter to a
+ * private client side cache.
+ */
+class CacheControl {
+
+    final boolean noStore;
+    final boolean noCache;
+    final long maxAgeSeconds;
+
+    private CacheControl(boolean noStore, boolean noCache, long maxAgeSeconds) {
+        this.noStore = noStore;
+        this.noCache = noCache;
+        this.maxAgeSeconds = maxAgeSeconds;
+    }
+
+    static CacheControl parse(HttpHeaders headers) {
+        boolean noStore = false;
+        boolean noCache = false;
+        long maxAgeSeconds = -1;
+        String value = headers == null ? null : headers.getHeader("Cache-Control");
+        if (value != null) {
+            for (String directive : value.split(",")) {
+                String[] pair = directive.trim().split("=", 2);
+                String name = pair[0].trim().toLowerCase(Locale.US);
+                if (name.equals("no-store")) {
+                    noStore = true;
+                } else if (name.equals("no-cache")) {
+                    noCache = true;
+                } else if (name.equals("max-age") && pair.length == 2) {
+                    try {
+                        maxAgeSeconds = Long.parseLong(pair[1].trim().replace("\"", ""));
+                    } catch (NumberFormatException ignore) {
+                    }
+                }
+            }
+        }
+        String pragma = headers == null ? null : headers.getHeader("Pragma");
+        if (pragma != null && pragma.toLowerCase(Locale.US).contains("no-cache")) {
+            noCache = true;
+        }
+        return new CacheControl(noStore, noCache, maxAgeSeconds);
+    }
+
+    /**
+     * @return how long, in milliseconds, a response with these headers stays fresh after it was
+     * received, or 0 if it must be revalidated right away.
+     */
+    static long getFreshnessLifetime(HttpHeaders headers, long receivedAt) {
+        CacheControl cacheControl = parse(headers);
+        if (cacheControl.noCache) {
+            return 0;
+        }
+        if (cacheControl.maxAgeSeconds >= 0) {
+            return TimeUnit.SECONDS.toMillis(cacheControl.maxAgeSeconds);
+        }
+        Date date = parseDate(headers.getHeader("Date"));
+        long servedAt = date == null ? receivedAt : date.getTime();
+        Date expires = parseDate(headers.getHeader("Expires"));
+        if (expires != null) {
+            return Math.max(0, expires.getTime() - servedAt);
+        }
+        // The usual heuristic: a tenth of the time since the resource last changed.
+        Date lastModified = parseDate(headers.getHeader("Last-Modified"));
+        if (lastModified != null && lastModified.getTime() < servedAt) {
+            return (servedAt - lastModified.getTime()) / 10;
+        }
+        return 0;
+    }
+
+    /**
+     * @return the age in milliseconds the response already had when it was received.
+     */
+    static long getInitialAge(HttpHeaders headers) {
+        String age = headers.getHeader("Age");
+        if (age != null) {
+            try {
+                return TimeUnit.SECONDS.toMillis(Long.parseLong(age.trim()));
+            } catch (NumberFormatException ignore) {
+            }
+        }
+        return 0;
+    }
+
+    static Date parseDate(String value) {
+        if (value == null) {
+            return null;
+        }
+        // SimpleDateFormat is not thread safe, so a fresh one is used every time.
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return format.parse(value.trim());
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2016-2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pk.codebase.requests;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Executors for delivering responses, errors and progress to listeners, see
+ * {@link HttpRequest#setCallbackExecutor(Executor)}.
+ */
+public final class CallbackExecutors {
+
+    private static Executor sMainThread;
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private CallbackExecutors() {
+    }
+
+    /**
+     * Posts to the main looper, the default. The looper is only looked up on first use.
+     */
+    public static synchronized Executor mainThread() {
+        if (sMainThread == null) {
+            final Handler handler = new Handler(Looper.getMainLooper());
+            sMainThread = new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    handler.post(command);
+                }
+            };
+        }
+        return sMainThread;
+    }
+
+    /**
+     * Runs listeners right on the worker thread that finished the request. Listeners must then
+     * not block for long, as they hold up that worker, and must not touch views. An exception
+     * thrown by a listener propagates on the worker thread, the request is not failed by it.
+     */
+    public static Executor direct() {
+        return DIRECT;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2016-2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pk.codebase.requests;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fails requests to a host immediately once it looks down, instead of letting every request
+ * wait for its own timeout.
+ *
+ * Each host starts closed. After {@code failureThreshold} consecutive network errors or 5xx
+ * responses the circuit opens and requests fail with {@link HttpError#CIRCUIT_OPEN}. Once
+ * {@code openDuration} passed it is half-open: a single request is let through and its outcome
+ * either closes the circuit or opens it again.
+ */
+public class CircuitBreaker {
+
+    private static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    private static final long DEFAULT_OPEN_DURATION = 30 * 1000; // 30 seconds
+
+    private static final int STATE_CLOSED = 0;
+    private static final int STATE_OPEN = 1;
+    private static final int STATE_HALF_OPEN = 2;
+
+    public final int failureThreshold;
+    public final long openDuration;
+
+    private final HashMap<String, Circuit> mCircuits = new HashMap<>();
+
+    public CircuitBreaker() {
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_DURATION);
+    }
+
+    /**
+     * @param failureThreshold consecutive failures after which a host's circuit opens.
+     * @param openDuration milliseconds to fail fast before a trial request is let through.
+     */
+    public CircuitBreaker(int failureThreshold, long openDuration) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("failureThreshold < 1");
+        }
+        if (openDuration <= 0) {
+            throw new IllegalArgumentException("openDuration <= 0");
+        }
+        this.failureThreshold = failureThreshold;
+        this.openDuration = openDuration;
+    }
+
+    /**
+     * Whether the circuit for the host is currently rejecting requests.
+     */
+    public synchronized boolean isOpen(String host) {
+        Circuit circuit = mCircuits.get(host);
+        return circuit != null && circuit.state == STATE_OPEN;
+    }
+
+    /**
+     * Every allowed request must be followed by exactly one {@code record} call.
+     */
+    synchronized boolean allowRequest(String host) {
+        Circuit circuit = mCircuits.get(host);
+        if (circuit == null || circuit.state == STATE_CLOSED) {
+            return true;
+        }
+        if (circuit.state == STATE_OPEN) {
+            if (System.nanoTime() - circuit.openedAt < TimeUnit.MILLISECONDS.toNanos(openDuration)) {
+                return false;
+            }
+            circuit.state = STATE_HALF_OPEN;
+            circuit.trialInFlight = false;
+        }
+        if (circuit.trialInFlight) {
+            return false;
+        }
+        circuit.trialInFlight = true;
+        return true;
+    }
+
+    void record(String host, HttpResponse response) {
+        if (response.code >= 500) {
+            onFailure(host);
+        } else {
+            onSuccess(host);
+        }
+    }
+
+    void record(String host, HttpError error) {
+        if (isHostFailure(error)) {
+            onFailure(host);
+        } else {
+            onIgnored(host);
+        }
+    }
+
+    // For an allowed request that never reached the host, e.g. one served from the cache.
+    void recordIgnored(String host) {
+        onIgnored(host);
+    }
+
+    private static boolean isHostFailure(HttpError error) {
+        switch (error.code) {
+            case HttpError.CONNECTION_REFUSED:
+            case HttpError.NETWORK_UNREACHABLE:
+            case HttpError.CONNECTION_TIMED_OUT:
+            case HttpError.LOST_CONNECTION:
+                return true;
+            case HttpError.UNKNOWN:
+                return error.stage == HttpError.STAGE_CONNECTING
+                        || error.stage == HttpError.STAGE_SENDING
+                        || error.stage == HttpError.STAGE_RECEIVING;
+            default:
+                return false;
+        }
+    }
+
+    private synchronized void onSuccess(String host) {
+        mCircuits.remove(host);
+    }
+
+    private synchronized void onFailure(String host) {
+        Circuit circuit = mCircuits.get(host);
+        if (circuit == null) {
+            circuit = new Circuit();
+            mCircuits.put(host, circuit);
+        }
+        circuit.failures += 1;
+        if (circuit.state == STATE_HALF_OPEN || circuit.failures >= failureThreshold) {
+            circuit.state = STATE_OPEN;
+            circuit.openedAt = System.nanoTime();
+            circuit.trialInFlight = false;
+        }
+    }
+
+    // The outcome says nothing about the host, e.g. a payload that failed to serialize.
+    private synchronized void onIgnored(String host) {
+        Circuit circuit = mCircuits.get(host);
+        if (circuit != null) {
+            circuit.trialInFlight = false;
+        }
+    }
+
+    private static class Circuit {
+        private int state = STATE_CLOSED;
+        private int failures;
+        private long openedAt;
+        private boolean trialInFlight;
+    }
+}
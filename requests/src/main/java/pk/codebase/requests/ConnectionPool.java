@@ -0,0 +1,92 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pk.codebase.requests;
+
+/**
+ * Keep-alive settings shared by every {@link HttpRequest} in the process.
+ *
+ * Sockets are pooled by the platform HTTP stack, keyed by scheme, host, port and proxy. This
+ * class configures that pool; it must be installed before the first request is made because
+ * the platform reads these settings only once. Until a pool is set explicitly, keep-alive
+ * system properties the app already set are left as they are.
+ */
+public class ConnectionPool {
+
+    private static final int DEFAULT_MAX_IDLE_CONNECTIONS = 5;
+    private static final long DEFAULT_KEEP_ALIVE_DURATION = 5 * 60 * 1000; // 5 minutes
+
+    private static ConnectionPool sDefault;
+
+    public final int maxIdleConnections;
+    public final long keepAliveDuration;
+
+    public ConnectionPool() {
+        this(DEFAULT_MAX_IDLE_CONNECTIONS, DEFAULT_KEEP_ALIVE_DURATION);
+    }
+
+    /**
+     * @param maxIdleConnections idle sockets kept per host, 0 disables reuse altogether.
+     * @param keepAliveDuration milliseconds after which an idle socket is evicted.
+     */
+    public ConnectionPool(int maxIdleConnections, long keepAliveDuration) {
+        if (maxIdleConnections < 0) {
+            throw new IllegalArgumentException("maxIdleConnections < 0");
+        }
+        if (keepAliveDuration <= 0) {
+            throw new IllegalArgumentException("keepAliveDuration <= 0");
+        }
+        this.maxIdleConnections = maxIdleConnections;
+        this.keepAliveDuration = keepAliveDuration;
+    }
+
+    public static synchronized void setDefault(ConnectionPool pool) {
+        pool.install(true);
+        sDefault = pool;
+    }
+
+    public static synchronized ConnectionPool getDefault() {
+        if (sDefault == null) {
+            // Not configured by the app, so whatever it already set for the platform stays.
+            sDefault = new ConnectionPool();
+            sDefault.install(false);
+        }
+        return sDefault;
+    }
+
+    boolean isReuseEnabled() {
+        return maxIdleConnections > 0;
+    }
+
+    private void install(boolean override) {
+        setProperty("http.keepAlive", String.valueOf(isReuseEnabled()), override);
+        if (isReuseEnabled()) {
+            setProperty("http.maxConnections", String.valueOf(maxIdleConnections), override);
+            // Android reads milliseconds, the JDK reads seconds.
+            setProperty("http.keepAliveDuration", String.valueOf(keepAliveDuration), override);
+            setProperty("http.keepAlive.time.server",
+                    String.valueOf(Math.max(1, keepAliveDuration / 1000)), override);
+        }
+    }
+
+    private static void setProperty(String name, String value, boolean override) {
+        if (override || System.getProperty(name) == null) {
+            System.setProperty(name, value);
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pk.codebase.requests;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs requests on a shared pool of worker threads, limiting how many are in flight in total
+ * and per host. Requests over those limits wait in a bounded queue.
+ */
+public class Dispatcher {
+
+    private static final int DEFAULT_MAX_REQUESTS = 64;
+    private static final int DEFAULT_MAX_REQUESTS_PER_HOST = 5;
+    private static final int DEFAULT_MAX_QUEUED_REQUESTS = 1024;
+
+    private static Dispatcher sDefault;
+    private static Boolean sVirtualThreadsSupported;
+
+    public final int maxRequests;
+    public final int maxRequestsPerHost;
+    public final int maxQueuedRequests;
+
+    private final ExecutorService mExecutor;
+    private final ArrayDeque<Call> mReadyCalls = new ArrayDeque<>();
+    private final HashMap<String, Integer> mRunningCallsPerHost = new HashMap<>();
+    private int mRunningCalls;
+    private boolean mShutdown;
+
+    public Dispatcher() {
+        this(DEFAULT_MAX_REQUESTS, DEFAULT_MAX_REQUESTS_PER_HOST, DEFAULT_MAX_QUEUED_REQUESTS);
+    }
+
+    public Dispatcher(int maxRequests, int maxRequestsPerHost, int maxQueuedRequests) {
+        this(maxRequests, maxRequestsPerHost, maxQueuedRequests,
+                new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                        new SynchronousQueue<Runnable>(), new WorkerThreadFactory()));
+    }
+
+    /**
+     * Runs requests on the given executor, which must accept as many concurrent tasks as
+     * {@code maxRequests}. It is shut down along with the dispatcher.
+     */
+    public Dispatcher(int maxRequests, int maxRequestsPerHost, int maxQueuedRequests,
+                      ExecutorService executor) {
+        if (maxRequests < 1) {
+            throw new IllegalArgumentException("maxRequests < 1");
+        }
+        if (maxRequestsPerHost < 1) {
+            throw new IllegalArgumentException("maxRequestsPerHost < 1");
+        }
+        if (maxQueuedRequests < 1) {
+            throw new IllegalArgumentException("maxQueuedRequests < 1");
+        }
+        this.maxRequests = maxRequests;
+        this.maxRequestsPerHost = maxRequestsPerHost;
+        this.maxQueuedRequests = maxQueuedRequests;
+        mExecutor = executor;
+    }
+
+    /**
+     * Whether the runtime has virtual threads, i.e. a JVM of version 21 or later. Never true
+     * on Android.
+     */
+    public static synchronized boolean isVirtualThreadSupported() {
+        if (sVirtualThreadsSupported == null) {
+            try {
+                Thread.class.getMethod("ofVirtual");
+                sVirtualThreadsSupported = true;
+            } catch (NoSuchMethodException e) {
+                sVirtualThreadsSupported = false;
+            }
+        }
+        return sVirtualThreadsSupported;
+    }
+
+    /**
+     * Creates a dispatcher that runs every request on a virtual thread of its own, so that
+     * thousands of slow requests can be in flight without as many platform threads.
+     *
+     * @throws UnsupportedOperationException if the runtime has no virtual threads.
+     */
+    public static Dispatcher newVirtualThreadDispatcher(int maxRequests, int maxRequestsPerHost,
+                                                        int maxQueuedRequests) {
+        ExecutorService executor = newVirtualThreadExecutor();
+        if (executor == null) {
+            throw new UnsupportedOperationException("Virtual threads are not supported");
+        }
+        return new Dispatcher(maxRequests, maxRequestsPerHost, maxQueuedRequests, executor);
+    }
+
+    // Looked up reflectively, the library is compiled for Android and older JVMs.
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class)
+                    .invoke(builder, "Requests Dispatcher (virtual) #", 1L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory")
+                    .invoke(builder);
+            Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor",
+                    ThreadFactory.class);
+            return (ExecutorService) newExecutor.invoke(null, factory);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    public static synchronized void setDefault(Dispatcher dispatcher) {
+        sDefault = dispatcher;
+    }
+
+    public static synchronized Dispatcher getDefault() {
+        if (sDefault == null) {
+            sDefault = new Dispatcher();
+        }
+        return sDefault;
+    }
+
+    interface RejectionListener {
+        /**
+         * Called in place of the task when the executor refused to run it after it was queued.
+         */
+        void onRejected(RejectedExecutionException e);
+    }
+
+    /**
+     * @throws RejectedExecutionException if the dispatcher is shut down or its queue is full,
+     * a rejection by the executor later on goes to the listener instead.
+     */
+    void enqueue(String host, Runnable task, RejectionListener rejectionListener) {
+        synchronized (this) {
+            if (mShutdown) {
+                throw new RejectedExecutionException("Dispatcher is shut down");
+            }
+            if (mReadyCalls.size() >= maxQueuedRequests) {
+                throw new RejectedExecutionException("Dispatcher queue is full");
+            }
+            mReadyCalls.add(new Call(host, task, rejectionListener));
+        }
+        promoteCalls();
+    }
+
+    private void promoteCalls() {
+        ArrayList<Call> executableCalls = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Call> iterator = mReadyCalls.iterator();
+            while (iterator.hasNext() && mRunningCalls < maxRequests) {
+                Call call = iterator.next();
+                int runningForHost = getRunningCallsForHost(call.host);
+                if (runningForHost >= maxRequestsPerHost) {
+                    continue;
+                }
+                iterator.remove();
+                mRunningCalls += 1;
+                mRunningCallsPerHost.put(call.host, runningForHost + 1);
+                executableCalls.add(call);
+            }
+        }
+        RuntimeException thrown = null;
+        for (Call call : executableCalls) {
+            try {
+                mExecutor.execute(call);
+            } catch (RejectedExecutionException e) {
+                // A listener that throws does not keep the other calls from being started.
+                try {
+                    call.rejectionListener.onRejected(e);
+                } catch (RuntimeException listenerException) {
+                    thrown = thrown == null ? listenerException : thrown;
+                } finally {
+                    finished(call);
+                }
+            }
+        }
+        if (thrown != null) {
+            throw thrown;
+        }
+    }
+
+    private void finished(Call call) {
+        synchronized (this) {
+            mRunningCalls -= 1;
+            int runningForHost = getRunningCallsForHost(call.host) - 1;
+            if (runningForHost > 0) {
+                mRunningCallsPerHost.put(call.host, runningForHost);
+            } else {
+                mRunningCallsPerHost.remove(call.host);
+            }
+        }
+        promoteCalls();
+        synchronized (this) {
+            if (isIdle()) {
+                if (mShutdown) {
+                    mExecutor.shutdown();
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    private int getRunningCallsForHost(String host) {
+        Integer count = mRunningCallsPerHost.get(host);
+        return count == null ? 0 : count;
+    }
+
+    private boolean isIdle() {
+        return mRunningCalls == 0 && mReadyCalls.isEmpty();
+    }
+
+    public synchronized int getRunningCallsCount() {
+        return mRunningCalls;
+    }
+
+    public synchronized int getQueuedCallsCount() {
+        return mReadyCalls.size();
+    }
+
+    /**
+     * Stops accepting new requests. Requests already queued or running are completed, after
+     * which the worker threads exit.
+     */
+    public synchronized void shutdown() {
+        mShutdown = true;
+        if (isIdle()) {
+            mExecutor.shutdown();
+            notifyAll();
+        }
+    }
+
+    public synchronized boolean isShutdown() {
+        return mShutdown;
+    }
+
+    /**
+     * Blocks until all requests have completed after a {@link #shutdown()}, or the timeout
+     * elapses, whichever happens first.
+     *
+     * @return true if the dispatcher terminated, false if the timeout elapsed.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (this) {
+            while (!mShutdown || !isIdle()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+        }
+        return mExecutor.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    private final class Call implements Runnable {
+        private final String host;
+        private final Runnable task;
+        private final RejectionListener rejectionListener;
+
+        private Call(String host, Runnable task, RejectionListener rejectionListener) {
+            this.host = host;
+            this.task = task;
+            this.rejectionListener = rejectionListener;
+        }
+
+        @Override
+        public void run() {
+            try {
+                task.run();
+            } finally {
+                finished(this);
+            }
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Requests Dispatcher #" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
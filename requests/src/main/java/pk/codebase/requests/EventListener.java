@@ -0,0 +1,105 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2016-2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pk.codebase.requests;
+
+import java.net.InetAddress;
+
+/**
+ * Receives the timeline of a single request, for finding out where its time went. Every
+ * callback gets a {@link System#nanoTime()} timestamp, so only differences between them are
+ * meaningful.
+ *
+ * Callbacks are made on the thread doing the work and must return quickly. A retried or hedged
+ * request reports each attempt, and events of hedged attempts may interleave.
+ *
+ * With {@link NioTransport}, DNS and connection events are reported only when a new connection
+ * is made, a reused one skips straight to sending. The platform's HttpURLConnection resolves
+ * names internally, so DNS is not reported for it. Over HTTPS it reports connection events only
+ * for new connections, but plain HTTP requests always report the time spent connecting, which
+ * is next to nothing for a reused connection. On the JDK, rather than Android, its TLS interval
+ * also includes the TCP connect. Installing a listener makes HTTPS requests through
+ * HttpURLConnection use their own socket factory, so they do not share pooled connections with
+ * requests made without one.
+ */
+public abstract class EventListener {
+
+    /**
+     * Creates a listener for each request, so the listener can keep per request state.
+     */
+    public interface Factory {
+        EventListener create(String method, String url);
+    }
+
+    /**
+     * The request was submitted, it is now waiting for a worker thread.
+     */
+    public void callStart(long nanoTime) {
+    }
+
+    /**
+     * A worker thread picked the request up, ending its queue wait.
+     */
+    public void dispatchStart(long nanoTime) {
+    }
+
+    public void dnsStart(String host, long nanoTime) {
+    }
+
+    public void dnsEnd(String host, InetAddress[] addresses, long nanoTime) {
+    }
+
+    public void connectStart(long nanoTime) {
+    }
+
+    public void secureConnectStart(long nanoTime) {
+    }
+
+    public void secureConnectEnd(long nanoTime) {
+    }
+
+    public void connectEnd(long nanoTime) {
+    }
+
+    /**
+     * The request body was written completely, not reported for requests without one.
+     */
+    public void requestBodyEnd(long nanoTime) {
+    }
+
+    /**
+     * The status line and headers arrived, the time to first byte.
+     */
+    public void responseStart(int code, long nanoTime) {
+    }
+
+    /**
+     * The response body was read completely, or for streamed responses, closed.
+     */
+    public void responseBodyEnd(long nanoTime) {
+    }
+
+    public void callFailed(HttpError error, long nanoTime) {
+    }
+
+    /**
+     * The response or error listener returned.
+     */
+    public void callbackDelivered(long nanoTime) {
+    }
+}
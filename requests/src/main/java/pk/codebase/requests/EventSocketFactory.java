@@ -0,0 +1,124 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2016-2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pk.codebase.requests;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Wraps the default factory to note when a socket is created for the connection being made on
+ * the current thread, which is when TLS starts, and that a new connection was made at all. A
+ * single instance is shared, as HTTPS connections are only pooled per factory.
+ *
+ * Android layers TLS over the connected socket, but the JDK creates an unconnected socket first,
+ * so there the reported TLS time includes the TCP connect.
+ */
+class EventSocketFactory extends SSLSocketFactory {
+
+    private static EventSocketFactory sInstance;
+
+    private final SSLSocketFactory mDelegate;
+    private final ThreadLocal<Boolean> mConnecting = new ThreadLocal<>();
+    private final ThreadLocal<Long> mSecureConnectStart = new ThreadLocal<>();
+
+    private EventSocketFactory(SSLSocketFactory delegate) {
+        mDelegate = delegate;
+    }
+
+    static synchronized EventSocketFactory getInstance() {
+        if (sInstance == null) {
+            sInstance = new EventSocketFactory(HttpsURLConnection.getDefaultSSLSocketFactory());
+        }
+        return sInstance;
+    }
+
+    SSLSocketFactory getDelegate() {
+        return mDelegate;
+    }
+
+    void startConnecting() {
+        mConnecting.set(Boolean.TRUE);
+        mSecureConnectStart.remove();
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} TLS started at since {@link #startConnecting()}, or
+     * -1 if no socket was created, i.e. a pooled connection was reused.
+     */
+    long finishConnecting() {
+        Long secureConnectStart = mSecureConnectStart.get();
+        mConnecting.remove();
+        mSecureConnectStart.remove();
+        return secureConnectStart == null ? -1 : secureConnectStart;
+    }
+
+    private Socket created(Socket socket) {
+        if (mConnecting.get() != null && mSecureConnectStart.get() == null) {
+            mSecureConnectStart.set(System.nanoTime());
+        }
+        return socket;
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return mDelegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return mDelegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket(Socket socket, String host, int port, boolean autoClose)
+            throws IOException {
+        return created(mDelegate.createSocket(socket, host, port, autoClose));
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        return created(mDelegate.createSocket());
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return created(mDelegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+            throws IOException {
+        return created(mDelegate.createSocket(host, port, localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return created(mDelegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+                               int localPort) throws IOException {
+        return created(mDelegate.createSocket(address, port, localAddress, localPort));
+    }
+}
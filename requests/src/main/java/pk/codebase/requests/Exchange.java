@@ -0,0 +1,77 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2016-2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pk.codebase.requests;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A single request and its response on a {@link Transport}, modelled on the parts of
+ * HttpURLConnection that {@link HttpBase} uses. The request is configured first, then
+ * connected, its body written and finally the response read.
+ */
+abstract class Exchange {
+
+    abstract void setRequestMethod(String method) throws ProtocolException;
+
+    abstract String getRequestMethod();
+
+    abstract void setConnectTimeout(int timeout);
+
+    abstract void setReadTimeout(int timeout);
+
+    abstract void setRequestProperty(String name, String value);
+
+    /**
+     * Declares a request body of exactly {@code length} bytes.
+     */
+    abstract void setFixedLengthStreamingMode(long length);
+
+    /**
+     * Declares a request body of unknown length.
+     */
+    abstract void setChunkedStreamingMode();
+
+    /**
+     * Opens or reuses a connection. Connection events are reported to the listener, if any.
+     */
+    abstract void connect(EventListener eventListener) throws IOException;
+
+    abstract OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Waits for the response and returns its body, null if there is none to read.
+     */
+    abstract InputStream getResponseBody() throws IOException;
+
+    abstract int getResponseCode() throws IOException;
+
+    abstract String getResponseMessage() throws IOException;
+
+    abstract Map<String, List<String>> getHeaderFields();
+
+    /**
+     * Closes the connection unless it can be reused, may be called from any thread.
+     */
+    abstract void disconnect();
+}
@@ -29,7 +29,7 @@ public class FormData {
     private static final String BOUNDARY_LINE = "---------------------------";
     private static final String SEMICOLON = "; ";
     private final ArrayList<MultiPartData> mData;
-    private int mContentLength = FINISH_LINE.length();
+    private long mContentLength = getByteLength(FINISH_LINE);
     private int mFilesCount;
 
     static final String BOUNDARY = BOUNDARY_LINE + System.currentTimeMillis();
@@ -88,10 +88,10 @@ public class FormData {
         MultiPartData data = new MultiPartData();
         data.setContentType(contentType);
         String preContentString = getFieldPreContentWriteString(contentType, fieldName, value);
-        mContentLength += preContentString.length();
+        mContentLength += getByteLength(preContentString);
         data.setPreContentData(preContentString);
         if (contentType == TYPE_CONTENT_TEXT) {
-            mContentLength += value.getBytes().length;
+            mContentLength += getByteLength(value);
         } else {
             File file = new File(value);
             mContentLength += file.length();
@@ -99,7 +99,7 @@ public class FormData {
         }
         data.setContent(value);
         String postContentString = getFieldPostContentWriteString(contentType);
-        mContentLength += postContentString.length();
+        mContentLength += getByteLength(postContentString);
         data.setPostContentData(postContentString);
         mData.add(data);
     }
@@ -112,7 +112,12 @@ public class FormData {
         append(TYPE_CONTENT_FILE, name, file.getAbsolutePath());
     }
 
-    int getContentLength() {
+    // Lengths are counted in encoded bytes, as that is how the parts are written.
+    private static long getByteLength(String value) {
+        return value.getBytes(RequestBody.UTF_8).length;
+    }
+
+    long getContentLength() {
         return mContentLength;
     }
 
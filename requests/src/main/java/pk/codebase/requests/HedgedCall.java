@@ -0,0 +1,179 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2016-2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pk.codebase.requests;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs one request as up to two racing attempts for a {@link HedgingPolicy}.
+ */
+class HedgedCall {
+
+    interface Attempt {
+        HttpBase create();
+
+        HttpResponse run(HttpBase http) throws HttpError;
+    }
+
+    private static ExecutorService sExecutor;
+
+    private final HedgingPolicy mPolicy;
+    private final String mHost;
+    private final Attempt mAttempt;
+    private final LinkedBlockingQueue<Result> mResults = new LinkedBlockingQueue<>();
+    private final ArrayList<HttpBase> mRunning = new ArrayList<>(2);
+    private boolean mFinished;
+
+    HedgedCall(HedgingPolicy policy, String host, Attempt attempt) {
+        mPolicy = policy;
+        mHost = host;
+        mAttempt = attempt;
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Requests Hedge #" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sExecutor;
+    }
+
+    HttpResponse execute() throws HttpError {
+        mPolicy.onRequest();
+        HttpBase primary = start();
+        int pending = 1;
+        try {
+            Result result = mResults.poll(mPolicy.getDelay(mHost), TimeUnit.MILLISECONDS);
+            if (result == null && !primary.isResponseStarted() && mPolicy.tryAcquireHedge()) {
+                start();
+                pending += 1;
+            }
+            HttpError firstError = null;
+            while (true) {
+                if (result == null) {
+                    result = mResults.take();
+                }
+                pending -= 1;
+                if (result.response != null) {
+                    return result.response;
+                }
+                if (firstError == null) {
+                    firstError = result.error;
+                }
+                if (pending == 0) {
+                    throw firstError;
+                }
+                result = null;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HttpError(HttpError.UNKNOWN, HttpError.STAGE_UNKNOWN,
+                    new InterruptedException("Interrupted while waiting for a response"));
+        } finally {
+            finish();
+        }
+    }
+
+    private HttpBase start() {
+        final HttpBase http = mAttempt.create();
+        synchronized (this) {
+            mRunning.add(http);
+        }
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                Result result;
+                try {
+                    result = new Result(mAttempt.run(http), null);
+                    mPolicy.recordLatency(mHost, http.getTimeToFirstByte());
+                } catch (HttpError error) {
+                    result = new Result(null, error);
+                } catch (Throwable t) {
+                    // Has to be reported as well, execute() would wait for it forever.
+                    result = new Result(null, new HttpError(HttpError.UNKNOWN,
+                            HttpError.STAGE_UNKNOWN, t));
+                }
+                synchronized (HedgedCall.this) {
+                    mRunning.remove(http);
+                    if (!mFinished) {
+                        mResults.add(result);
+                        return;
+                    }
+                }
+                // Lost the race, a streamed body would otherwise leak its connection.
+                if (result.response != null) {
+                    closeQuietly(result.response.body);
+                }
+            }
+        });
+        return http;
+    }
+
+    private void finish() {
+        ArrayList<HttpBase> losers;
+        synchronized (this) {
+            mFinished = true;
+            losers = new ArrayList<>(mRunning);
+        }
+        for (HttpBase http : losers) {
+            http.cancel();
+        }
+        Result result;
+        while ((result = mResults.poll()) != null) {
+            if (result.response != null) {
+                closeQuietly(result.response.body);
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    private static class Result {
+        private final HttpResponse response;
+        private final HttpError error;
+
+        private Result(HttpResponse response, HttpError error) {
+            this.response = response;
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2016-2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pk.codebase.requests;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Sends a second copy of a GET that has not started receiving a response within a delay, and
+ * uses whichever copy completes first. This trades a little extra load for a shorter tail
+ * latency when an occasional connection stalls.
+ *
+ * The delay is either fixed or a percentile of the recent time to first byte for the host, so
+ * only the slowest requests are hedged. The number of hedges is capped at a fraction of all
+ * requests.
+ */
+public class HedgingPolicy {
+
+    private static final double DEFAULT_MAX_HEDGE_RATIO = 0.1;
+    private static final int LATENCY_SAMPLES = 100;
+    private static final int MIN_LATENCY_SAMPLES = 20;
+    // Hedges that may be saved up during quiet periods and spent in a burst.
+    private static final double MAX_HEDGE_TOKENS = 10;
+
+    public final long delay;
+
+    private final HashMap<String, LatencyWindow> mLatencies = new HashMap<>();
+    private double mPercentile;
+    private double mMaxHedgeRatio = DEFAULT_MAX_HEDGE_RATIO;
+    private double mHedgeTokens;
+
+    /**
+     * @param delay milliseconds to wait for the first byte before hedging. When a percentile is
+     *              set, this is only used until enough latencies were seen for the host.
+     */
+    public HedgingPolicy(long delay) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("delay < 0");
+        }
+        this.delay = delay;
+    }
+
+    /**
+     * Hedges once a request is slower than the given percentile of the host's recent time to
+     * first byte, e.g. 0.95 hedges roughly the slowest 5%.
+     */
+    public HedgingPolicy setPercentile(double percentile) {
+        if (percentile <= 0 || percentile >= 1) {
+            throw new IllegalArgumentException("percentile must be between 0 and 1");
+        }
+        synchronized (this) {
+            mPercentile = percentile;
+        }
+        return this;
+    }
+
+    /**
+     * Caps hedges to this fraction of requests, 0.1 by default.
+     */
+    public HedgingPolicy setMaxHedgeRatio(double maxHedgeRatio) {
+        if (maxHedgeRatio < 0 || maxHedgeRatio > 1) {
+            throw new IllegalArgumentException("maxHedgeRatio must be between 0 and 1");
+        }
+        synchronized (this) {
+            mMaxHedgeRatio = maxHedgeRatio;
+        }
+        return this;
+    }
+
+    synchronized long getDelay(String host) {
+        LatencyWindow window = mLatencies.get(host);
+        if (mPercentile == 0 || window == null || window.mCount < MIN_LATENCY_SAMPLES) {
+            return delay;
+        }
+        return window.getPercentile(mPercentile);
+    }
+
+    synchronized void recordLatency(String host, long millis) {
+        LatencyWindow window = mLatencies.get(host);
+        if (window == null) {
+            window = new LatencyWindow();
+            mLatencies.put(host, window);
+        }
+        window.add(millis);
+    }
+
+    /**
+     * Called once per request, earns the budget that {@link #tryAcquireHedge()} spends.
+     */
+    synchronized void onRequest() {
+        mHedgeTokens = Math.min(MAX_HEDGE_TOKENS, mHedgeTokens + mMaxHedgeRatio);
+    }
+
+    synchronized boolean tryAcquireHedge() {
+        if (mHedgeTokens < 1) {
+            return false;
+        }
+        mHedgeTokens -= 1;
+        return true;
+    }
+
+    private static class LatencyWindow {
+        private final long[] mSamples = new long[LATENCY_SAMPLES];
+        private int mCount;
+        private int mNext;
+
+        void add(long millis) {
+            mSamples[mNext] = millis;
+            mNext = (mNext + 1) % mSamples.length;
+            mCount = Math.min(mCount + 1, mSamples.length);
+        }
+
+        long getPercentile(double percentile) {
+            long[] sorted = Arrays.copyOf(mSamples, mCount);
+            Arrays.sort(sorted);
+            return sorted[Math.min(mCount - 1, (int) (percentile * mCount))];
+        }
+    }
+}
@@ -0,0 +1,438 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2016-2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pk.codebase.requests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * HPACK header compression for HTTP/2 (RFC 7541). The decoder implements all of it, the
+ * encoder only sends literals and static table references, so it never keeps a dynamic table
+ * the peer would have to mirror.
+ */
+class Hpack {
+
+    static final int DEFAULT_HEADER_TABLE_SIZE = 4096;
+    private static final int MAX_HEADER_LIST_SIZE = 256 * 1024;
+
+    private static final String[][] STATIC_TABLE = {
+            {":authority", ""},
+            {":method", "GET"},
+            {":method", "POST"},
+            {":path", "/"},
+            {":path", "/index.html"},
+            {":scheme", "http"},
+            {":scheme", "https"},
+            {":status", "200"},
+            {":status", "204"},
+            {":status", "206"},
+            {":status", "304"},
+            {":status", "400"},
+            {":status", "404"},
+            {":status", "500"},
+            {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""},
+            {"accept-ranges", ""},
+            {"accept", ""},
+            {"access-control-allow-origin", ""},
+            {"age", ""},
+            {"allow", ""},
+            {"authorization", ""},
+            {"cache-control", ""},
+            {"content-disposition", ""},
+            {"content-encoding", ""},
+            {"content-language", ""},
+            {"content-length", ""},
+            {"content-location", ""},
+            {"content-range", ""},
+            {"content-type", ""},
+            {"cookie", ""},
+            {"date", ""},
+            {"etag", ""},
+            {"expect", ""},
+            {"expires", ""},
+            {"from", ""},
+            {"host", ""},
+            {"if-match", ""},
+            {"if-modified-since", ""},
+            {"if-none-match", ""},
+            {"if-range", ""},
+            {"if-unmodified-since", ""},
+            {"last-modified", ""},
+            {"link", ""},
+            {"location", ""},
+            {"max-forwards", ""},
+            {"proxy-authenticate", ""},
+            {"proxy-authorization", ""},
+            {"range", ""},
+            {"referer", ""},
+            {"refresh", ""},
+            {"retry-after", ""},
+            {"server", ""},
+            {"set-cookie", ""},
+            {"strict-transport-security", ""},
+            {"transfer-encoding", ""},
+            {"user-agent", ""},
+            {"vary", ""},
+            {"via", ""},
+            {"www-authenticate", ""}
+    };
+
+    // The Huffman code of every octet and of EOS (256), from appendix B of the RFC.
+    private static final int[] HUFFMAN_CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+            0x3fffffff    };
+
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30    };
+
+    private static final int EOS = 256;
+    // A binary tree over the codes, two child slots per node. Children are node indexes,
+    // leaves are stored as -(symbol + 1) and 0 marks a missing child.
+    private static final int[] HUFFMAN_TREE = buildHuffmanTree();
+    // Static table index of each name and of each name and value pair.
+    private static final HashMap<String, Integer> STATIC_NAME_INDEX = new HashMap<>();
+    private static final HashMap<String, Integer> STATIC_FIELD_INDEX = new HashMap<>();
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_NAME_INDEX.put(STATIC_TABLE[i][0], i + 1);
+            if (!STATIC_TABLE[i][1].isEmpty()) {
+                STATIC_FIELD_INDEX.put(STATIC_TABLE[i][0] + ":" + STATIC_TABLE[i][1], i + 1);
+            }
+        }
+    }
+
+    private static int[] buildHuffmanTree() {
+        int[] tree = new int[2 * EOS];
+        int nodes = 1;
+        for (int symbol = 0; symbol <= EOS; symbol++) {
+            int code = HUFFMAN_CODES[symbol];
+            int node = 0;
+            for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit > 0; bit--) {
+                int slot = node * 2 + ((code >>> bit) & 1);
+                if (tree[slot] == 0) {
+                    tree[slot] = nodes++;
+                }
+                node = tree[slot];
+            }
+            tree[node * 2 + (code & 1)] = -(symbol + 1);
+        }
+        return tree;
+    }
+
+    /**
+     * Decodes header blocks into name and value pairs. One decoder per connection, it must see
+     * every block in the order received since they update a shared table.
+     */
+    static class Decoder {
+        private final ArrayList<String[]> mDynamicTable = new ArrayList<>();
+        private int mDynamicTableSize;
+        private int mMaxDynamicTableSize = DEFAULT_HEADER_TABLE_SIZE;
+        private byte[] mBlock;
+        private int mPosition;
+        private int mLimit;
+
+        /**
+         * Adds the names and values of the block to {@code fields}, alternating.
+         */
+        void decode(byte[] block, int offset, int length, List<String> fields)
+                throws IOException {
+            mBlock = block;
+            mPosition = offset;
+            mLimit = offset + length;
+            int listSize = 0;
+            boolean fieldSeen = false;
+            while (mPosition < mLimit) {
+                int b = mBlock[mPosition] & 0xff;
+                String name;
+                String value;
+                if ((b & 0x80) != 0) {
+                    // Indexed field.
+                    String[] field = getField(readInt(7));
+                    name = field[0];
+                    value = field[1];
+                } else if ((b & 0x40) != 0) {
+                    // Literal with incremental indexing.
+                    int index = readInt(6);
+                    name = index == 0 ? readString() : getField(index)[0];
+                    value = readString();
+                    addField(name, value);
+                } else if ((b & 0x20) != 0) {
+                    // Dynamic table size update, only allowed ahead of the fields.
+                    int size = readInt(5);
+                    if (fieldSeen || size > DEFAULT_HEADER_TABLE_SIZE) {
+                        throw new ProtocolException("Invalid HPACK table size update");
+                    }
+                    mMaxDynamicTableSize = size;
+                    evict(0);
+                    continue;
+                } else {
+                    // Literal without indexing or never indexed.
+                    int index = readInt(4);
+                    name = index == 0 ? readString() : getField(index)[0];
+                    value = readString();
+                }
+                fieldSeen = true;
+                listSize += name.length() + value.length() + 32;
+                if (listSize > MAX_HEADER_LIST_SIZE) {
+                    throw new ProtocolException("Response headers too large");
+                }
+                fields.add(name);
+                fields.add(value);
+            }
+            mBlock = null;
+        }
+
+        private String[] getField(int index) throws ProtocolException {
+            if (index > 0 && index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1];
+            }
+            // Dynamic entries count from the newest, which is at the end of the list.
+            int dynamicIndex = mDynamicTable.size() - (index - STATIC_TABLE.length);
+            if (index <= 0 || dynamicIndex < 0) {
+                throw new ProtocolException("Invalid HPACK index " + index);
+            }
+            return mDynamicTable.get(dynamicIndex);
+        }
+
+        private void addField(String name, String value) {
+            int size = name.length() + value.length() + 32;
+            evict(size);
+            if (size <= mMaxDynamicTableSize) {
+                mDynamicTable.add(new String[]{name, value});
+                mDynamicTableSize += size;
+            }
+        }
+
+        // Drops the oldest entries until there is room for the given size, or none are left.
+        private void evict(int size) {
+            int evicted = 0;
+            while (evicted < mDynamicTable.size()
+                    && mDynamicTableSize + size > mMaxDynamicTableSize) {
+                String[] field = mDynamicTable.get(evicted++);
+                mDynamicTableSize -= field[0].length() + field[1].length() + 32;
+            }
+            mDynamicTable.subList(0, evicted).clear();
+        }
+
+        private int readInt(int prefixBits) throws ProtocolException {
+            int mask = (1 << prefixBits) - 1;
+            int value = readByte() & mask;
+            if (value < mask) {
+                return value;
+            }
+            for (int shift = 0; shift < 28; shift += 7) {
+                int b = readByte();
+                value += (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new ProtocolException("HPACK integer too large");
+        }
+
+        private int readByte() throws ProtocolException {
+            if (mPosition == mLimit) {
+                throw new ProtocolException("Truncated HPACK block");
+            }
+            return mBlock[mPosition++] & 0xff;
+        }
+
+        private String readString() throws ProtocolException {
+            boolean huffman = (mBlock[mPosition < mLimit ? mPosition : mLimit - 1] & 0x80) != 0;
+            int length = readInt(7);
+            if (length > mLimit - mPosition) {
+                throw new ProtocolException("Truncated HPACK block");
+            }
+            String value;
+            if (huffman) {
+                value = decodeHuffman(mBlock, mPosition, length);
+            } else {
+                value = new String(mBlock, mPosition, length, NioExchange.ISO_8859_1);
+            }
+            mPosition += length;
+            return value;
+        }
+    }
+
+    private static String decodeHuffman(byte[] data, int offset, int length)
+            throws ProtocolException {
+        StringBuilder value = new StringBuilder(length * 8 / 5);
+        int node = 0;
+        int bits = 0;
+        boolean ones = true;
+        for (int i = offset; i < offset + length; i++) {
+            for (int shift = 7; shift >= 0; shift--) {
+                int bit = (data[i] >>> shift) & 1;
+                int next = HUFFMAN_TREE[node * 2 + bit];
+                bits += 1;
+                ones &= bit == 1;
+                if (next < 0) {
+                    int symbol = -next - 1;
+                    if (symbol == EOS) {
+                        throw new ProtocolException("EOS in Huffman string");
+                    }
+                    value.append((char) symbol);
+                    node = 0;
+                    bits = 0;
+                    ones = true;
+                } else if (next == 0) {
+                    throw new ProtocolException("Invalid Huffman string");
+                } else {
+                    node = next;
+                }
+            }
+        }
+        // Padding is the most significant bits of EOS, i.e. fewer than eight ones.
+        if (bits > 7 || !ones) {
+            throw new ProtocolException("Invalid Huffman padding");
+        }
+        return value.toString();
+    }
+
+    /**
+     * Encodes header fields, names must already be lower case. Stateless, so it can be shared.
+     */
+    static class Encoder {
+
+        void encode(List<String> fields, ByteArrayOutputStream out) {
+            for (int i = 0; i < fields.size(); i += 2) {
+                String name = fields.get(i);
+                String value = fields.get(i + 1);
+                Integer index = STATIC_FIELD_INDEX.get(name + ":" + value);
+                if (index != null) {
+                    writeInt(out, 0x80, 7, index);
+                    continue;
+                }
+                // Credentials are marked as never to be indexed by intermediaries either.
+                boolean sensitive = name.equals("authorization")
+                        || name.equals("proxy-authorization");
+                int flags = sensitive ? 0x10 : 0x00;
+                index = STATIC_NAME_INDEX.get(name);
+                if (index != null) {
+                    writeInt(out, flags, 4, index);
+                } else {
+                    out.write(flags);
+                    writeString(out, name);
+                }
+                writeString(out, value);
+            }
+        }
+
+        private static void writeInt(ByteArrayOutputStream out, int flags, int prefixBits,
+                                     int value) {
+            int mask = (1 << prefixBits) - 1;
+            if (value < mask) {
+                out.write(flags | value);
+                return;
+            }
+            out.write(flags | mask);
+            value -= mask;
+            while (value >= 0x80) {
+                out.write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+
+        // Huffman coded whenever that is shorter.
+        private static void writeString(ByteArrayOutputStream out, String value) {
+            byte[] bytes = value.getBytes(NioExchange.ISO_8859_1);
+            long bits = 0;
+            for (byte b : bytes) {
+                bits += HUFFMAN_LENGTHS[b & 0xff];
+            }
+            int huffmanLength = (int) ((bits + 7) / 8);
+            if (huffmanLength >= bytes.length) {
+                writeInt(out, 0x00, 7, bytes.length);
+                out.write(bytes, 0, bytes.length);
+                return;
+            }
+            writeInt(out, 0x80, 7, huffmanLength);
+            long current = 0;
+            int pending = 0;
+            for (byte b : bytes) {
+                int symbol = b & 0xff;
+                current = (current << HUFFMAN_LENGTHS[symbol]) | HUFFMAN_CODES[symbol];
+                pending += HUFFMAN_LENGTHS[symbol];
+                while (pending >= 8) {
+                    pending -= 8;
+                    out.write((int) (current >>> pending));
+                }
+            }
+            if (pending > 0) {
+                // Padded with the leading ones of EOS.
+                out.write((int) ((current << (8 - pending)) | (0xff >>> pending)));
+            }
+        }
+    }
+}
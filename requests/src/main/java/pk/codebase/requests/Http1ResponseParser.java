@@ -0,0 +1,344 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2016-2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pk.codebase.requests;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Incrementally parses an HTTP/1.1 response as its bytes arrive, taking care of interim 1xx
+ * responses and of the body framing: Content-Length, chunked or until the connection closes.
+ */
+class Http1ResponseParser {
+
+    interface Callback {
+        /**
+         * @param headers the header fields, with the status line under a null key like
+         *                HttpURLConnection reports it.
+         */
+        void onResponseHead(int code, String message, Map<String, List<String>> headers);
+
+        /**
+         * Part of the decoded body, only valid for the duration of the call.
+         *
+         * @param last whether this completes the response, in which case
+         *             {@link #onComplete()} is not called.
+         */
+        void onBody(ByteBuffer data, boolean last);
+
+        void onComplete();
+    }
+
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final int MAX_HEADER_LINES = 256;
+
+    private static final int STATE_STATUS_LINE = 0;
+    private static final int STATE_HEADERS = 1;
+    private static final int STATE_BODY_FIXED = 2;
+    private static final int STATE_CHUNK_SIZE = 3;
+    private static final int STATE_CHUNK_DATA = 4;
+    private static final int STATE_CHUNK_END = 5;
+    private static final int STATE_TRAILERS = 6;
+    private static final int STATE_BODY_UNTIL_CLOSE = 7;
+    private static final int STATE_DONE = 8;
+
+    private final boolean mHeadRequest;
+    private final Callback mCallback;
+    private int mState = STATE_STATUS_LINE;
+    private byte[] mLine = new byte[256];
+    private int mLineLength;
+    private int mHeaderLines;
+    private int mCode;
+    private String mMessage;
+    private Map<String, List<String>> mHeaders;
+    private long mRemaining;
+    private boolean mStarted;
+    private volatile boolean mReusable;
+
+    Http1ResponseParser(String requestMethod, Callback callback) {
+        mHeadRequest = requestMethod.equals("HEAD");
+        mCallback = callback;
+    }
+
+    /**
+     * Whether any bytes of the response arrived yet.
+     */
+    boolean isStarted() {
+        return mStarted;
+    }
+
+    boolean isComplete() {
+        return mState == STATE_DONE;
+    }
+
+    /**
+     * Whether the connection can carry another request after this response.
+     */
+    boolean isReusable() {
+        return mReusable;
+    }
+
+    void parse(ByteBuffer data) throws IOException {
+        if (data.hasRemaining()) {
+            mStarted = true;
+        }
+        while (data.hasRemaining()) {
+            switch (mState) {
+                case STATE_STATUS_LINE:
+                    if (readLine(data)) {
+                        parseStatusLine(takeLine());
+                    }
+                    break;
+                case STATE_HEADERS:
+                case STATE_TRAILERS:
+                    if (readLine(data)) {
+                        String line = takeLine();
+                        if (mState == STATE_HEADERS) {
+                            parseHeaderLine(line);
+                        } else if (line.isEmpty()) {
+                            complete();
+                        }
+                    }
+                    break;
+                case STATE_BODY_FIXED:
+                case STATE_CHUNK_DATA:
+                    readBody(data);
+                    break;
+                case STATE_CHUNK_SIZE:
+                    if (readLine(data)) {
+                        parseChunkSize(takeLine());
+                    }
+                    break;
+                case STATE_CHUNK_END:
+                    if (readLine(data)) {
+                        if (!takeLine().isEmpty()) {
+                            throw new ProtocolException("Expected CRLF after chunk");
+                        }
+                        mState = STATE_CHUNK_SIZE;
+                    }
+                    break;
+                case STATE_BODY_UNTIL_CLOSE:
+                    mCallback.onBody(data, false);
+                    data.position(data.limit());
+                    break;
+                default:
+                    // Bytes after the response, the connection is out of sync.
+                    mReusable = false;
+                    data.position(data.limit());
+                    break;
+            }
+        }
+    }
+
+    /**
+     * The connection was closed by the peer, which ends a body that runs until then.
+     */
+    void onEndOfStream() throws IOException {
+        if (mState == STATE_BODY_UNTIL_CLOSE) {
+            complete();
+        } else if (mState != STATE_DONE) {
+            throw new SocketException("Unexpected end of stream");
+        }
+    }
+
+    private void readBody(ByteBuffer data) {
+        int length = (int) Math.min(mRemaining, data.remaining());
+        mRemaining -= length;
+        // Reported along with the last bytes, so that a reader who got them all and closes
+        // right away finds the connection reusable.
+        boolean last = mRemaining == 0 && mState == STATE_BODY_FIXED;
+        if (mRemaining == 0) {
+            mState = mState == STATE_CHUNK_DATA ? STATE_CHUNK_END : STATE_DONE;
+        }
+        int limit = data.limit();
+        data.limit(data.position() + length);
+        mCallback.onBody(data, last);
+        data.position(data.limit());
+        data.limit(limit);
+    }
+
+    private boolean readLine(ByteBuffer data) throws ProtocolException {
+        while (data.hasRemaining()) {
+            byte b = data.get();
+            if (b == '\n') {
+                if (mLineLength > 0 && mLine[mLineLength - 1] == '\r') {
+                    mLineLength -= 1;
+                }
+                return true;
+            }
+            if (mLineLength == mLine.length) {
+                if (mLineLength >= MAX_LINE_LENGTH) {
+                    throw new ProtocolException("Response line too long");
+                }
+                byte[] line = new byte[mLine.length * 2];
+                System.arraycopy(mLine, 0, line, 0, mLineLength);
+                mLine = line;
+            }
+            mLine[mLineLength++] = b;
+        }
+        return false;
+    }
+
+    private String takeLine() {
+        String line = new String(mLine, 0, mLineLength, NioExchange.ISO_8859_1);
+        mLineLength = 0;
+        return line;
+    }
+
+    private void parseStatusLine(String line) throws ProtocolException {
+        // HTTP/1.1 200 OK
+        if (!line.startsWith("HTTP/1.") || line.length() < 12 || line.charAt(8) != ' ') {
+            throw new ProtocolException("Unexpected status line: " + line);
+        }
+        try {
+            mCode = Integer.parseInt(line.substring(9, 12));
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Unexpected status line: " + line);
+        }
+        mMessage = line.length() > 13 ? line.substring(13) : "";
+        mHeaders = new LinkedHashMap<>();
+        List<String> statusLine = new ArrayList<>(1);
+        statusLine.add(line);
+        mHeaders.put(null, statusLine);
+        mHeaderLines = 0;
+        // HTTP/1.0 closes after every response unless asked otherwise.
+        mReusable = line.charAt(7) != '0';
+        mState = STATE_HEADERS;
+    }
+
+    private void parseHeaderLine(String line) throws IOException {
+        if (line.isEmpty()) {
+            onHeadersEnd();
+            return;
+        }
+        if (++mHeaderLines > MAX_HEADER_LINES) {
+            throw new ProtocolException("Too many response headers");
+        }
+        int colon = line.indexOf(':');
+        if (colon <= 0) {
+            // Obsolete line folding and garbage are both ignored.
+            return;
+        }
+        String name = line.substring(0, colon).trim();
+        String value = line.substring(colon + 1).trim();
+        List<String> values = null;
+        for (Map.Entry<String, List<String>> header : mHeaders.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                values = header.getValue();
+                break;
+            }
+        }
+        if (values == null) {
+            values = new ArrayList<>(1);
+            mHeaders.put(name, values);
+        }
+        values.add(value);
+    }
+
+    private void onHeadersEnd() throws IOException {
+        if (mCode >= 100 && mCode < 200) {
+            if (mCode == 101) {
+                throw new ProtocolException("Unexpected protocol switch");
+            }
+            // An interim response, the final one follows.
+            mState = STATE_STATUS_LINE;
+            return;
+        }
+        String connection = getHeader("Connection");
+        if (connection != null) {
+            if (containsToken(connection, "close")) {
+                mReusable = false;
+            } else if (containsToken(connection, "keep-alive")) {
+                mReusable = true;
+            }
+        }
+        mCallback.onResponseHead(mCode, mMessage, mHeaders);
+        String transferEncoding = getHeader("Transfer-Encoding");
+        String contentLength = getHeader("Content-Length");
+        if (mHeadRequest || mCode == HttpResponse.HTTP_NO_CONTENT
+                || mCode == HttpResponse.HTTP_NOT_MODIFIED) {
+            complete();
+        } else if (transferEncoding != null && containsToken(transferEncoding, "chunked")) {
+            mState = STATE_CHUNK_SIZE;
+        } else if (contentLength != null) {
+            try {
+                mRemaining = Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Invalid Content-Length: " + contentLength);
+            }
+            if (mRemaining < 0) {
+                throw new ProtocolException("Invalid Content-Length: " + contentLength);
+            }
+            if (mRemaining == 0) {
+                complete();
+            } else {
+                mState = STATE_BODY_FIXED;
+            }
+        } else {
+            mReusable = false;
+            mState = STATE_BODY_UNTIL_CLOSE;
+        }
+    }
+
+    private void parseChunkSize(String line) throws IOException {
+        int end = line.indexOf(';');
+        String size = (end == -1 ? line : line.substring(0, end)).trim();
+        try {
+            mRemaining = Long.parseLong(size, 16);
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Invalid chunk size: " + line);
+        }
+        if (mRemaining < 0) {
+            throw new ProtocolException("Invalid chunk size: " + line);
+        }
+        mState = mRemaining == 0 ? STATE_TRAILERS : STATE_CHUNK_DATA;
+    }
+
+    private void complete() {
+        mState = STATE_DONE;
+        mCallback.onComplete();
+    }
+
+    private String getHeader(String name) {
+        String value = null;
+        for (Map.Entry<String, List<String>> header : mHeaders.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                for (String item : header.getValue()) {
+                    value = value == null ? item : value + ", " + item;
+                }
+            }
+        }
+        return value;
+    }
+
+    private static boolean containsToken(String value, String token) {
+        for (String item : value.split(",")) {
+            if (item.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,827 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2016-2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pk.codebase.requests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An HTTP/2 connection (RFC 7540) that multiplexes concurrent requests as streams over a
+ * single {@link NioConnection}.
+ *
+ * Frames are parsed on the loop thread and handed to their {@link Http2Stream}, request
+ * threads write their own frames. Everything shared between the two is guarded by this
+ * connection's lock, which is only ever taken after a stream's lock, never before.
+ */
+class Http2Connection implements NioConnection.Listener {
+
+    static final int FRAME_HEADER_LENGTH = 9;
+    // Our receive window per stream, which also bounds how much of a response is buffered.
+    static final int STREAM_RECEIVE_WINDOW = 1024 * 1024;
+
+    private static final byte[] PREFACE =
+            "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(NioExchange.ISO_8859_1);
+    private static final int CONNECTION_RECEIVE_WINDOW = 16 * 1024 * 1024;
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+    private static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+    // We never raise SETTINGS_MAX_FRAME_SIZE, so neither side sends larger frames.
+    private static final int MAX_FRAME_SIZE = 16384;
+    private static final int MAX_HEADER_BLOCK_SIZE = 1024 * 1024;
+    // Assumed until the server's SETTINGS arrive, the protocol itself sets no limit.
+    private static final int DEFAULT_MAX_CONCURRENT_STREAMS = 100;
+
+    private static final int TYPE_DATA = 0x0;
+    private static final int TYPE_HEADERS = 0x1;
+    private static final int TYPE_RST_STREAM = 0x3;
+    private static final int TYPE_SETTINGS = 0x4;
+    private static final int TYPE_PUSH_PROMISE = 0x5;
+    private static final int TYPE_PING = 0x6;
+    private static final int TYPE_GOAWAY = 0x7;
+    private static final int TYPE_WINDOW_UPDATE = 0x8;
+    private static final int TYPE_CONTINUATION = 0x9;
+
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    private static final int ERROR_PROTOCOL = 0x1;
+    private static final int ERROR_REFUSED_STREAM = 0x7;
+    private static final int ERROR_CANCEL = 0x8;
+
+    private static final Hpack.Encoder ENCODER = new Hpack.Encoder();
+
+    private final NioTransport mTransport;
+    private final NioConnection mConnection;
+
+    // Only touched on the loop thread.
+    private final Hpack.Decoder mDecoder = new Hpack.Decoder();
+    private final byte[] mFrameHeader = new byte[FRAME_HEADER_LENGTH];
+    private final byte[] mPayload = new byte[MAX_FRAME_SIZE];
+    private int mFrameHeaderLength;
+    private int mPayloadLength;
+    private int mLength;
+    private int mType;
+    private int mFlags;
+    private int mStreamId;
+    private final ByteArrayOutputStream mHeaderBlock = new ByteArrayOutputStream();
+    private int mHeaderBlockStreamId;
+    private boolean mHeaderBlockEndStream;
+    private boolean mClosed;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mChanged = mLock.newCondition();
+    private final HashMap<Integer, Http2Stream> mStreams = new HashMap<>();
+    private int mNextStreamId = 1;
+    private int mMaxConcurrentStreams = DEFAULT_MAX_CONCURRENT_STREAMS;
+    private int mInitialWindowSize = DEFAULT_WINDOW_SIZE;
+    private long mSendWindow = DEFAULT_WINDOW_SIZE;
+    private long mReceiveWindow = CONNECTION_RECEIVE_WINDOW;
+    private int mUnacknowledged;
+    private boolean mSettingsReceived;
+    private boolean mShutdown;
+    private IOException mFailure;
+    private long mIdleSince;
+
+    Http2Connection(NioTransport transport, NioConnection connection) {
+        mTransport = transport;
+        mConnection = connection;
+    }
+
+    NioConnection getConnection() {
+        return mConnection;
+    }
+
+    /**
+     * Sends the connection preface and our settings, then waits for the server's settings so
+     * that its stream limit is known before the connection is shared.
+     */
+    void start(int timeoutMillis) throws IOException {
+        ByteBuffer preface = ByteBuffer.allocate(PREFACE.length + FRAME_HEADER_LENGTH * 2 + 16);
+        preface.put(PREFACE);
+        putFrameHeader(preface, 12, TYPE_SETTINGS, 0, 0);
+        // Responses are what we ask for, nothing gets pushed.
+        preface.putShort((short) SETTINGS_ENABLE_PUSH).putInt(0);
+        preface.putShort((short) SETTINGS_INITIAL_WINDOW_SIZE).putInt(STREAM_RECEIVE_WINDOW);
+        putFrameHeader(preface, 4, TYPE_WINDOW_UPDATE, 0, 0);
+        preface.putInt(CONNECTION_RECEIVE_WINDOW - DEFAULT_WINDOW_SIZE);
+        preface.flip();
+        mLock.lock();
+        try {
+            mIdleSince = System.nanoTime();
+        } finally {
+            mLock.unlock();
+        }
+        mConnection.write(preface);
+        mConnection.setListener(this);
+        long deadline = NioConnection.deadline(timeoutMillis);
+        mLock.lock();
+        try {
+            while (!mSettingsReceived) {
+                if (mFailure != null) {
+                    throw mFailure;
+                }
+                NioConnection.await(mChanged, deadline, "connect timed out");
+            }
+        } catch (IOException e) {
+            mConnection.close(e);
+            throw e;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Whether a new stream can be opened right now.
+     */
+    boolean hasCapacity() {
+        mLock.lock();
+        try {
+            return !mShutdown && mStreams.size() < mMaxConcurrentStreams;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Whether the connection is going away, in which case it takes no more streams.
+     */
+    boolean isShutdown() {
+        mLock.lock();
+        try {
+            return mShutdown;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Whether the connection has had no streams for at least the given time.
+     */
+    boolean isIdleFor(long nanos) {
+        mLock.lock();
+        try {
+            return mStreams.isEmpty() && System.nanoTime() - mIdleSince >= nanos;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    void close() {
+        mConnection.close(null);
+    }
+
+    /**
+     * Opens a stream by sending the request headers.
+     *
+     * @param fields the header names and values, alternating, pseudo-headers first.
+     * @param bodyLength the length of the request body, -1 if unknown.
+     * @return the stream, or null if the connection takes no more streams.
+     */
+    Http2Stream newStream(List<String> fields, boolean hasBody, long bodyLength,
+                          int readTimeout) {
+        ByteArrayOutputStream block = new ByteArrayOutputStream(256);
+        ENCODER.encode(fields, block);
+        ByteBuffer frames = headersFrames(block.toByteArray(), !hasBody);
+        mLock.lock();
+        try {
+            if (mShutdown || mStreams.size() >= mMaxConcurrentStreams) {
+                return null;
+            }
+            int id = mNextStreamId;
+            mNextStreamId += 2;
+            if (mNextStreamId < 0) {
+                // Stream identifiers are used up, new requests go to a new connection.
+                mShutdown = true;
+            }
+            // Writing under the lock keeps the stream identifiers in increasing order.
+            frames.putInt(5, id);
+            try {
+                mConnection.write(frames);
+            } catch (IOException e) {
+                mShutdown = true;
+                return null;
+            }
+            Http2Stream stream = new Http2Stream(this, id, bodyLength, readTimeout);
+            stream.sendWindow = mInitialWindowSize;
+            stream.localClosed = !hasBody;
+            mStreams.put(id, stream);
+            return stream;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    // HEADERS and any CONTINUATION frames in one buffer, so nothing gets in between them. The
+    // stream identifier of the first frame is filled in later.
+    private static ByteBuffer headersFrames(byte[] block, boolean endStream) {
+        int frames = Math.max(1, (block.length + MAX_FRAME_SIZE - 1) / MAX_FRAME_SIZE);
+        ByteBuffer buffer = ByteBuffer.allocate(block.length + frames * FRAME_HEADER_LENGTH);
+        int type = TYPE_HEADERS;
+        int flags = endStream ? FLAG_END_STREAM : 0;
+        int offset = 0;
+        do {
+            int length = Math.min(MAX_FRAME_SIZE, block.length - offset);
+            if (offset + length == block.length) {
+                flags |= FLAG_END_HEADERS;
+            }
+            putFrameHeader(buffer, length, type, flags, 0);
+            buffer.put(block, offset, length);
+            offset += length;
+            type = TYPE_CONTINUATION;
+            flags = 0;
+        } while (offset < block.length);
+        buffer.flip();
+        return buffer;
+    }
+
+    ByteBuffer acquireBuffer(int timeoutMillis) throws IOException {
+        return mConnection.acquireBuffer(timeoutMillis);
+    }
+
+    void recycle(ByteBuffer buffer) {
+        mConnection.recycle(buffer);
+    }
+
+    /**
+     * Sends the buffer's data as DATA frames once the flow control windows allow. The buffer
+     * comes from {@link #acquireBuffer(int)} with its first {@link #FRAME_HEADER_LENGTH} bytes
+     * left free for the frame header, it is recycled either way.
+     */
+    void writeData(Http2Stream stream, ByteBuffer buffer, boolean endStream, long deadline)
+            throws IOException {
+        int length = buffer.remaining() - FRAME_HEADER_LENGTH;
+        while (true) {
+            int count;
+            boolean close;
+            mLock.lock();
+            try {
+                while (true) {
+                    if (stream.sendFailure != null) {
+                        mConnection.recycle(buffer);
+                        throw stream.sendFailure;
+                    }
+                    count = (int) Math.min(length, Math.min(mSendWindow, stream.sendWindow));
+                    if (count > 0 || length == 0) {
+                        break;
+                    }
+                    try {
+                        NioConnection.await(mChanged, deadline, "Write timed out");
+                    } catch (IOException e) {
+                        mConnection.recycle(buffer);
+                        throw e;
+                    }
+                }
+                mSendWindow -= count;
+                stream.sendWindow -= count;
+                if (count == length && endStream) {
+                    stream.localClosed = true;
+                    if (stream.remoteClosed) {
+                        removeStream(stream, null);
+                    }
+                }
+                close = shouldClose();
+            } finally {
+                mLock.unlock();
+            }
+            int flags = count == length && endStream ? FLAG_END_STREAM : 0;
+            if (count == length) {
+                ByteBuffer header = buffer.duplicate();
+                header.clear();
+                putFrameHeader(header, count, TYPE_DATA, flags, stream.id);
+                mConnection.write(buffer);
+                if (close) {
+                    close();
+                }
+                return;
+            }
+            // Only part of it fits the window, that part is copied out.
+            ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_LENGTH + count);
+            putFrameHeader(frame, count, TYPE_DATA, 0, stream.id);
+            ByteBuffer data = buffer.duplicate();
+            data.limit(FRAME_HEADER_LENGTH + count);
+            data.position(FRAME_HEADER_LENGTH);
+            frame.put(data);
+            frame.flip();
+            mConnection.write(frame);
+            buffer.position(count);
+            buffer.compact();
+            buffer.flip();
+            length -= count;
+        }
+    }
+
+    /**
+     * Resets a stream the caller is no longer interested in.
+     */
+    void cancel(Http2Stream stream) {
+        resetStream(stream, ERROR_CANCEL, new SocketException("Socket closed"));
+    }
+
+    private void resetStream(Http2Stream stream, int errorCode, IOException cause) {
+        boolean reset;
+        boolean close;
+        mLock.lock();
+        try {
+            reset = removeStream(stream, cause);
+            close = shouldClose();
+        } finally {
+            mLock.unlock();
+        }
+        if (reset) {
+            ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_LENGTH + 4);
+            putFrameHeader(frame, 4, TYPE_RST_STREAM, 0, stream.id);
+            frame.putInt(errorCode);
+            writeQuietly(frame);
+        }
+        if (close) {
+            close();
+        }
+    }
+
+    /**
+     * Returns bytes of the connection's receive window once the caller consumed or discarded
+     * them, sending a WINDOW_UPDATE for every half window.
+     */
+    void onConsumed(int count) {
+        int increment = 0;
+        mLock.lock();
+        try {
+            mUnacknowledged += count;
+            if (mUnacknowledged >= CONNECTION_RECEIVE_WINDOW / 2) {
+                increment = mUnacknowledged;
+                mUnacknowledged = 0;
+                mReceiveWindow += increment;
+            }
+        } finally {
+            mLock.unlock();
+        }
+        if (increment > 0) {
+            writeWindowUpdate(0, increment);
+        }
+    }
+
+    void writeWindowUpdate(int streamId, int increment) {
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_LENGTH + 4);
+        putFrameHeader(frame, 4, TYPE_WINDOW_UPDATE, 0, streamId);
+        frame.putInt(increment);
+        writeQuietly(frame);
+    }
+
+    // Only fails once the connection is closed, which the streams learn about in onClosed().
+    private void writeQuietly(ByteBuffer frame) {
+        frame.flip();
+        try {
+            mConnection.write(frame);
+        } catch (IOException ignore) {
+        }
+    }
+
+    // Called with the lock held.
+    private boolean removeStream(Http2Stream stream, IOException cause) {
+        if (mStreams.get(stream.id) != stream) {
+            return false;
+        }
+        mStreams.remove(stream.id);
+        stream.sendFailure = cause != null ? cause : new SocketException("Stream closed");
+        if (mStreams.isEmpty()) {
+            mIdleSince = System.nanoTime();
+        }
+        mChanged.signalAll();
+        return true;
+    }
+
+    // Called with the lock held. A connection going away is closed after its last stream,
+    // and so is every connection when pooling is disabled.
+    private boolean shouldClose() {
+        return mStreams.isEmpty() && (mShutdown || !ConnectionPool.getDefault().isReuseEnabled());
+    }
+
+    @Override
+    public void onData(ByteBuffer data) throws IOException {
+        while (data.hasRemaining() && !mClosed) {
+            if (mFrameHeaderLength < FRAME_HEADER_LENGTH) {
+                int count = Math.min(data.remaining(), FRAME_HEADER_LENGTH - mFrameHeaderLength);
+                data.get(mFrameHeader, mFrameHeaderLength, count);
+                mFrameHeaderLength += count;
+                if (mFrameHeaderLength < FRAME_HEADER_LENGTH) {
+                    return;
+                }
+                mLength = (mFrameHeader[0] & 0xff) << 16 | (mFrameHeader[1] & 0xff) << 8
+                        | (mFrameHeader[2] & 0xff);
+                mType = mFrameHeader[3] & 0xff;
+                mFlags = mFrameHeader[4] & 0xff;
+                mStreamId = getInt(mFrameHeader, 5) & 0x7fffffff;
+                mPayloadLength = 0;
+                if (mLength > MAX_FRAME_SIZE) {
+                    throw new ProtocolException("Frame too large: " + mLength);
+                }
+            }
+            int count = Math.min(data.remaining(), mLength - mPayloadLength);
+            data.get(mPayload, mPayloadLength, count);
+            mPayloadLength += count;
+            if (mPayloadLength < mLength) {
+                return;
+            }
+            mFrameHeaderLength = 0;
+            onFrame();
+        }
+    }
+
+    private void onFrame() throws IOException {
+        if (mHeaderBlockStreamId != 0
+                && (mType != TYPE_CONTINUATION || mStreamId != mHeaderBlockStreamId)) {
+            throw new ProtocolException("Expected a CONTINUATION frame");
+        }
+        switch (mType) {
+            case TYPE_DATA:
+                onDataFrame();
+                break;
+            case TYPE_HEADERS:
+                onHeadersFrame();
+                break;
+            case TYPE_CONTINUATION:
+                onContinuationFrame();
+                break;
+            case TYPE_RST_STREAM:
+                onRstStreamFrame();
+                break;
+            case TYPE_SETTINGS:
+                onSettingsFrame();
+                break;
+            case TYPE_PUSH_PROMISE:
+                throw new ProtocolException("Server push was not enabled");
+            case TYPE_PING:
+                onPingFrame();
+                break;
+            case TYPE_GOAWAY:
+                onGoAwayFrame();
+                break;
+            case TYPE_WINDOW_UPDATE:
+                onWindowUpdateFrame();
+                break;
+            default:
+                // PRIORITY and unknown frame types are ignored.
+                break;
+        }
+    }
+
+    private void onDataFrame() throws IOException {
+        requireStreamId();
+        int offset = (mFlags & FLAG_PADDED) != 0 ? 1 : 0;
+        int length = mLength - offset - getPaddingLength();
+        boolean endStream = (mFlags & FLAG_END_STREAM) != 0;
+        Http2Stream stream;
+        mLock.lock();
+        try {
+            mReceiveWindow -= mLength;
+            if (mReceiveWindow < 0) {
+                throw new ProtocolException("Connection flow control window exceeded");
+            }
+            stream = mStreams.get(mStreamId);
+            if (stream != null && stream.remoteClosed) {
+                stream = null;
+            }
+        } finally {
+            mLock.unlock();
+        }
+        int discarded = mLength;
+        if (stream != null) {
+            try {
+                if (stream.onData(mPayload, offset, length, mLength, endStream)) {
+                    discarded = mLength - length;
+                }
+            } catch (ProtocolException e) {
+                resetStream(stream, ERROR_PROTOCOL, e);
+                stream.onFailure(e, false);
+                stream = null;
+            }
+        }
+        if (discarded > 0) {
+            onConsumed(discarded);
+        }
+        if (stream != null && endStream) {
+            onRemoteClosed(stream);
+        }
+    }
+
+    private void onHeadersFrame() throws IOException {
+        requireStreamId();
+        int offset = (mFlags & FLAG_PADDED) != 0 ? 1 : 0;
+        if ((mFlags & FLAG_PRIORITY) != 0) {
+            offset += 5;
+        }
+        int length = mLength - offset - getPaddingLength();
+        if (length < 0) {
+            throw new ProtocolException("Invalid HEADERS frame");
+        }
+        mHeaderBlock.reset();
+        mHeaderBlock.write(mPayload, offset, length);
+        mHeaderBlockEndStream = (mFlags & FLAG_END_STREAM) != 0;
+        if ((mFlags & FLAG_END_HEADERS) != 0) {
+            onHeaderBlock();
+        } else {
+            mHeaderBlockStreamId = mStreamId;
+        }
+    }
+
+    private void onContinuationFrame() throws IOException {
+        if (mHeaderBlockStreamId == 0) {
+            throw new ProtocolException("Unexpected CONTINUATION frame");
+        }
+        if (mHeaderBlock.size() + mLength > MAX_HEADER_BLOCK_SIZE) {
+            throw new ProtocolException("Response headers too large");
+        }
+        mHeaderBlock.write(mPayload, 0, mLength);
+        if ((mFlags & FLAG_END_HEADERS) != 0) {
+            mHeaderBlockStreamId = 0;
+            onHeaderBlock();
+        }
+    }
+
+    private void onHeaderBlock() throws IOException {
+        byte[] block = mHeaderBlock.toByteArray();
+        List<String> fields = new ArrayList<>();
+        // Decoded even for streams we no longer track, it updates the shared table.
+        mDecoder.decode(block, 0, block.length, fields);
+        Http2Stream stream = getStream(mStreamId);
+        if (stream == null) {
+            return;
+        }
+        try {
+            stream.onHeaders(fields, mHeaderBlockEndStream);
+        } catch (ProtocolException e) {
+            resetStream(stream, ERROR_PROTOCOL, e);
+            stream.onFailure(e, false);
+            return;
+        }
+        if (mHeaderBlockEndStream) {
+            onRemoteClosed(stream);
+        }
+    }
+
+    private void onRemoteClosed(Http2Stream stream) {
+        boolean close;
+        mLock.lock();
+        try {
+            stream.remoteClosed = true;
+            if (stream.localClosed) {
+                removeStream(stream, null);
+            }
+            close = shouldClose();
+        } finally {
+            mLock.unlock();
+        }
+        if (close) {
+            close();
+        }
+    }
+
+    private void onRstStreamFrame() throws IOException {
+        requireStreamId();
+        requireLength(4);
+        int errorCode = getInt(mPayload, 0);
+        Http2Stream stream = getStream(mStreamId);
+        if (stream == null) {
+            return;
+        }
+        SocketException cause = new SocketException("Stream reset with error code " + errorCode);
+        boolean close;
+        mLock.lock();
+        try {
+            removeStream(stream, cause);
+            close = shouldClose();
+        } finally {
+            mLock.unlock();
+        }
+        stream.onFailure(cause, errorCode == ERROR_REFUSED_STREAM);
+        if (close) {
+            close();
+        }
+    }
+
+    private void onSettingsFrame() throws IOException {
+        if (mStreamId != 0) {
+            throw new ProtocolException("SETTINGS frame on a stream");
+        }
+        if ((mFlags & FLAG_ACK) != 0) {
+            requireLength(0);
+            return;
+        }
+        if (mLength % 6 != 0) {
+            throw new ProtocolException("Invalid SETTINGS frame");
+        }
+        mLock.lock();
+        try {
+            for (int offset = 0; offset < mLength; offset += 6) {
+                int id = (mPayload[offset] & 0xff) << 8 | (mPayload[offset + 1] & 0xff);
+                int value = getInt(mPayload, offset + 2);
+                switch (id) {
+                    case SETTINGS_MAX_CONCURRENT_STREAMS:
+                        // Unsigned, anything above 2^31 is as good as unlimited.
+                        mMaxConcurrentStreams = value < 0 ? Integer.MAX_VALUE : value;
+                        break;
+                    case SETTINGS_INITIAL_WINDOW_SIZE:
+                        if (value < 0) {
+                            throw new ProtocolException("Invalid initial window size");
+                        }
+                        // Applies to the streams already open as well.
+                        for (Http2Stream stream : mStreams.values()) {
+                            stream.sendWindow += value - mInitialWindowSize;
+                        }
+                        mInitialWindowSize = value;
+                        break;
+                    case SETTINGS_MAX_FRAME_SIZE:
+                        if (value < MAX_FRAME_SIZE || value > 0xffffff) {
+                            throw new ProtocolException("Invalid max frame size");
+                        }
+                        break;
+                    default:
+                        // The header table size is moot, the encoder keeps no table.
+                        break;
+                }
+            }
+            mSettingsReceived = true;
+            mChanged.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+        ByteBuffer ack = ByteBuffer.allocate(FRAME_HEADER_LENGTH);
+        putFrameHeader(ack, 0, TYPE_SETTINGS, FLAG_ACK, 0);
+        ack.flip();
+        mConnection.write(ack);
+    }
+
+    private void onPingFrame() throws IOException {
+        if (mStreamId != 0) {
+            throw new ProtocolException("PING frame on a stream");
+        }
+        requireLength(8);
+        if ((mFlags & FLAG_ACK) != 0) {
+            return;
+        }
+        ByteBuffer pong = ByteBuffer.allocate(FRAME_HEADER_LENGTH + 8);
+        putFrameHeader(pong, 8, TYPE_PING, FLAG_ACK, 0);
+        pong.put(mPayload, 0, 8);
+        pong.flip();
+        mConnection.write(pong);
+    }
+
+    // Streams after the last one the server processed fail as refused, so they can be retried.
+    private void onGoAwayFrame() throws IOException {
+        if (mStreamId != 0 || mLength < 8) {
+            throw new ProtocolException("Invalid GOAWAY frame");
+        }
+        int lastStreamId = getInt(mPayload, 0) & 0x7fffffff;
+        int errorCode = getInt(mPayload, 4);
+        SocketException cause = new SocketException("Connection shut down with error code "
+                + errorCode);
+        List<Http2Stream> refused = new ArrayList<>();
+        boolean close;
+        mLock.lock();
+        try {
+            mShutdown = true;
+            for (Http2Stream stream : mStreams.values()) {
+                if (stream.id > lastStreamId) {
+                    refused.add(stream);
+                }
+            }
+            for (Http2Stream stream : refused) {
+                removeStream(stream, cause);
+            }
+            close = shouldClose();
+        } finally {
+            mLock.unlock();
+        }
+        for (Http2Stream stream : refused) {
+            stream.onFailure(cause, true);
+        }
+        if (close) {
+            close();
+        }
+    }
+
+    private void onWindowUpdateFrame() throws IOException {
+        requireLength(4);
+        int increment = getInt(mPayload, 0) & 0x7fffffff;
+        if (increment == 0) {
+            throw new ProtocolException("Invalid window increment");
+        }
+        mLock.lock();
+        try {
+            if (mStreamId == 0) {
+                mSendWindow += increment;
+                if (mSendWindow > MAX_WINDOW_SIZE) {
+                    throw new ProtocolException("Connection flow control window overflow");
+                }
+            } else {
+                Http2Stream stream = mStreams.get(mStreamId);
+                if (stream != null) {
+                    stream.sendWindow += increment;
+                }
+            }
+            mChanged.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void onClosed(IOException cause) {
+        mClosed = true;
+        IOException failure = cause != null ? cause : new SocketException("Connection closed");
+        List<Http2Stream> streams;
+        mLock.lock();
+        try {
+            mShutdown = true;
+            mFailure = failure;
+            mChanged.signalAll();
+            streams = new ArrayList<>(mStreams.values());
+            for (Http2Stream stream : streams) {
+                removeStream(stream, failure);
+            }
+        } finally {
+            mLock.unlock();
+        }
+        mTransport.remove(this);
+        for (Http2Stream stream : streams) {
+            stream.onFailure(failure, false);
+        }
+    }
+
+    private Http2Stream getStream(int id) {
+        mLock.lock();
+        try {
+            return mStreams.get(id);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private int getPaddingLength() throws ProtocolException {
+        if ((mFlags & FLAG_PADDED) == 0) {
+            return 0;
+        }
+        if (mLength == 0 || (mPayload[0] & 0xff) >= mLength) {
+            throw new ProtocolException("Invalid padding");
+        }
+        return mPayload[0] & 0xff;
+    }
+
+    private void requireStreamId() throws ProtocolException {
+        if (mStreamId == 0) {
+            throw new ProtocolException("Frame type " + mType + " without a stream");
+        }
+    }
+
+    private void requireLength(int length) throws ProtocolException {
+        if (mLength != length) {
+            throw new ProtocolException("Invalid length of frame type " + mType);
+        }
+    }
+
+    private static int getInt(byte[] data, int offset) {
+        return (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16
+                | (data[offset + 2] & 0xff) << 8 | (data[offset + 3] & 0xff);
+    }
+
+    private static void putFrameHeader(ByteBuffer buffer, int length, int type, int flags,
+                                       int streamId) {
+        buffer.put((byte) (length >>> 16));
+        buffer.put((byte) (length >>> 8));
+        buffer.put((byte) length);
+        buffer.put((byte) type);
+        buffer.put((byte) flags);
+        buffer.putInt(streamId);
+    }
+}
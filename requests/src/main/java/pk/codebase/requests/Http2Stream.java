@@ -0,0 +1,463 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2016-2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pk.codebase.requests;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One request and its response on an {@link Http2Connection}. The response is buffered up to
+ * the stream's receive window, the server waits for the reader beyond that.
+ */
+class Http2Stream {
+
+    final int id;
+    private final Http2Connection mConnection;
+    private final long mBodyLength;
+    private final int mReadTimeout;
+
+    // Guarded by the connection's lock.
+    long sendWindow;
+    boolean localClosed;
+    boolean remoteClosed;
+    IOException sendFailure;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mChanged = mLock.newCondition();
+    private boolean mHeadReceived;
+    private int mCode;
+    private Map<String, List<String>> mHeaders;
+    private final ArrayDeque<byte[]> mBody = new ArrayDeque<>();
+    private int mBodyOffset;
+    private long mQueuedBytes;
+    private boolean mBodyComplete;
+    private int mReceiveWindow = Http2Connection.STREAM_RECEIVE_WINDOW;
+    private int mUnacknowledged;
+    private IOException mFailure;
+    private boolean mRefused;
+    private boolean mCanceled;
+    private BodyOutputStream mOutputStream;
+    private BodyInputStream mInputStream;
+
+    /**
+     * @param bodyLength the length of the request body, -1 if unknown.
+     */
+    Http2Stream(Http2Connection connection, int id, long bodyLength, int readTimeout) {
+        this.id = id;
+        mConnection = connection;
+        mBodyLength = bodyLength;
+        mReadTimeout = readTimeout;
+    }
+
+    OutputStream getOutputStream() throws IOException {
+        if (mOutputStream == null) {
+            mOutputStream = new BodyOutputStream();
+        }
+        return mOutputStream;
+    }
+
+    /**
+     * Ends the request body, if the request has one.
+     */
+    void finishRequest(boolean hasBody) throws IOException {
+        if (hasBody) {
+            getOutputStream().close();
+        }
+    }
+
+    void awaitResponseHead() throws IOException {
+        long deadline = NioConnection.deadline(mReadTimeout);
+        InterruptedIOException timeout = null;
+        mLock.lock();
+        try {
+            while (!mHeadReceived) {
+                if (mFailure != null) {
+                    throw mFailure;
+                }
+                try {
+                    NioConnection.await(mChanged, deadline, "Read timed out");
+                } catch (InterruptedIOException e) {
+                    // Later calls fail with it at once rather than waiting all over again.
+                    mFailure = e;
+                    timeout = e;
+                    break;
+                }
+            }
+        } finally {
+            mLock.unlock();
+        }
+        if (timeout != null) {
+            cancel();
+            throw timeout;
+        }
+    }
+
+    int getCode() {
+        mLock.lock();
+        try {
+            return mCode;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    Map<String, List<String>> getHeaders() {
+        mLock.lock();
+        try {
+            return mHeaders;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    InputStream getResponseBody() {
+        if (mInputStream == null) {
+            mInputStream = new BodyInputStream();
+        }
+        return mInputStream;
+    }
+
+    /**
+     * Whether the server did not process the request, so it is safe to send it again.
+     */
+    boolean isRefused() {
+        mLock.lock();
+        try {
+            return mRefused;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Stops the exchange, discarding what was buffered of the response.
+     */
+    void cancel() {
+        long discarded;
+        mLock.lock();
+        try {
+            if (mCanceled) {
+                return;
+            }
+            mCanceled = true;
+            discarded = mQueuedBytes;
+            mBody.clear();
+            mQueuedBytes = 0;
+            if (mFailure == null) {
+                mFailure = new SocketException("Socket closed");
+            }
+            mChanged.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+        if (discarded > 0) {
+            mConnection.onConsumed((int) discarded);
+        }
+        mConnection.cancel(this);
+    }
+
+    /**
+     * Called on the loop thread with a decoded header block.
+     */
+    void onHeaders(List<String> fields, boolean endStream) throws ProtocolException {
+        mLock.lock();
+        try {
+            if (mHeadReceived) {
+                // Trailers, which HttpURLConnection has no way to expose either.
+                if (!endStream) {
+                    throw new ProtocolException("Trailers without END_STREAM");
+                }
+                mBodyComplete = true;
+                mChanged.signalAll();
+                return;
+            }
+            String status = null;
+            LinkedHashMap<String, List<String>> headers = new LinkedHashMap<>();
+            for (int i = 0; i < fields.size(); i += 2) {
+                String name = fields.get(i);
+                if (name.startsWith(":")) {
+                    if (name.equals(":status")) {
+                        status = fields.get(i + 1);
+                    }
+                    continue;
+                }
+                List<String> values = headers.get(name);
+                if (values == null) {
+                    values = new ArrayList<>(1);
+                    headers.put(name, values);
+                }
+                values.add(fields.get(i + 1));
+            }
+            int code;
+            try {
+                code = Integer.parseInt(status);
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Invalid :status " + status);
+            }
+            if (code < 100 || code > 999 || code == 101) {
+                throw new ProtocolException("Unexpected :status " + status);
+            }
+            if (code < 200) {
+                // Informational, the actual response follows.
+                return;
+            }
+            List<String> statusLine = new ArrayList<>(1);
+            statusLine.add("HTTP/2 " + code);
+            headers.put(null, statusLine);
+            mCode = code;
+            mHeaders = headers;
+            mHeadReceived = true;
+            mBodyComplete = endStream;
+            mChanged.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Called on the loop thread with the data of a DATA frame, whose whole length counts
+     * towards the window.
+     *
+     * @return false if the data is not wanted any more.
+     */
+    boolean onData(byte[] data, int offset, int length, int frameLength, boolean endStream)
+            throws ProtocolException {
+        int increment;
+        mLock.lock();
+        try {
+            mReceiveWindow -= frameLength;
+            if (mReceiveWindow < 0) {
+                throw new ProtocolException("Stream flow control window exceeded");
+            }
+            if (!mHeadReceived) {
+                throw new ProtocolException("DATA frame before HEADERS");
+            }
+            if (mCanceled) {
+                return false;
+            }
+            if (length > 0) {
+                byte[] chunk = new byte[length];
+                System.arraycopy(data, offset, chunk, 0, length);
+                mBody.add(chunk);
+                mQueuedBytes += length;
+            }
+            mBodyComplete = endStream;
+            increment = onConsumed(frameLength - length);
+            mChanged.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+        if (increment > 0) {
+            mConnection.writeWindowUpdate(id, increment);
+        }
+        return true;
+    }
+
+    /**
+     * Called on the loop thread when the stream was reset or the connection failed.
+     *
+     * @param refused whether the server is known not to have processed the request.
+     */
+    void onFailure(IOException cause, boolean refused) {
+        mLock.lock();
+        try {
+            if (mFailure == null && !mBodyComplete) {
+                mFailure = cause;
+                mRefused = refused && !mHeadReceived;
+            }
+            mChanged.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    // Called with the lock held, returns the window increment to send if any.
+    private int onConsumed(int count) {
+        mUnacknowledged += count;
+        if (mBodyComplete || mUnacknowledged < Http2Connection.STREAM_RECEIVE_WINDOW / 2) {
+            return 0;
+        }
+        int increment = mUnacknowledged;
+        mUnacknowledged = 0;
+        mReceiveWindow += increment;
+        return increment;
+    }
+
+    private class BodyInputStream extends InputStream {
+        private boolean mClosed;
+
+        @Override
+        public int read() throws IOException {
+            byte[] buffer = new byte[1];
+            return read(buffer, 0, 1) == -1 ? -1 : buffer[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            long deadline = NioConnection.deadline(mReadTimeout);
+            int count;
+            int increment;
+            mLock.lock();
+            try {
+                if (mClosed) {
+                    throw new IOException("Stream closed");
+                }
+                while (mBody.isEmpty()) {
+                    if (mBodyComplete) {
+                        return -1;
+                    }
+                    if (mFailure != null) {
+                        throw mFailure;
+                    }
+                    NioConnection.await(mChanged, deadline, "Read timed out");
+                }
+                byte[] chunk = mBody.peek();
+                count = Math.min(length, chunk.length - mBodyOffset);
+                System.arraycopy(chunk, mBodyOffset, buffer, offset, count);
+                mBodyOffset += count;
+                if (mBodyOffset == chunk.length) {
+                    mBody.poll();
+                    mBodyOffset = 0;
+                }
+                mQueuedBytes -= count;
+                increment = onConsumed(count);
+            } finally {
+                mLock.unlock();
+            }
+            if (increment > 0) {
+                mConnection.writeWindowUpdate(id, increment);
+            }
+            mConnection.onConsumed(count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            mLock.lock();
+            try {
+                return (int) Math.min(mQueuedBytes, Integer.MAX_VALUE);
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            boolean complete;
+            mLock.lock();
+            try {
+                mClosed = true;
+                complete = mBodyComplete && mBody.isEmpty();
+            } finally {
+                mLock.unlock();
+            }
+            if (!complete) {
+                cancel();
+            }
+        }
+    }
+
+    // Fills the connection's direct buffers behind the space reserved for the frame header.
+    private class BodyOutputStream extends OutputStream {
+        private ByteBuffer mBuffer;
+        private long mWritten;
+        private boolean mClosed;
+
+        BodyOutputStream() throws IOException {
+            mBuffer = acquireBuffer();
+        }
+
+        private ByteBuffer acquireBuffer() throws IOException {
+            ByteBuffer buffer = mConnection.acquireBuffer(mReadTimeout);
+            buffer.position(Http2Connection.FRAME_HEADER_LENGTH);
+            return buffer;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            if (mClosed) {
+                throw new IOException("Stream closed");
+            }
+            if (mBodyLength >= 0 && mWritten + length > mBodyLength) {
+                throw new IOException(String.format("Expected %d bytes but received %d",
+                        mBodyLength, mWritten + length));
+            }
+            while (length > 0) {
+                if (!mBuffer.hasRemaining()) {
+                    send(false);
+                    mBuffer = acquireBuffer();
+                }
+                int count = Math.min(mBuffer.remaining(), length);
+                mBuffer.put(buffer, offset, count);
+                offset += count;
+                length -= count;
+                mWritten += count;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (!mClosed && mBuffer.position() > Http2Connection.FRAME_HEADER_LENGTH) {
+                send(false);
+                mBuffer = acquireBuffer();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mClosed) {
+                return;
+            }
+            if (mBodyLength >= 0 && mWritten < mBodyLength) {
+                throw new IOException(String.format("Expected %d bytes but received %d",
+                        mBodyLength, mWritten));
+            }
+            mClosed = true;
+            send(true);
+        }
+
+        private void send(boolean last) throws IOException {
+            ByteBuffer buffer = mBuffer;
+            mBuffer = null;
+            buffer.flip();
+            mConnection.writeData(Http2Stream.this, buffer, last,
+                    NioConnection.deadline(mReadTimeout));
+        }
+    }
+}
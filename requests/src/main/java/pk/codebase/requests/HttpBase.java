@@ -18,21 +18,20 @@
 
 package pk.codebase.requests;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonProcessingException;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.net.ConnectException;
-import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
 import java.net.ProtocolException;
 import java.net.Proxy;
@@ -43,7 +42,15 @@ import java.net.SocketOptions;
 import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import javax.net.ssl.SSLHandshakeException;
 
@@ -64,46 +71,73 @@ import static pk.codebase.requests.HttpError.STAGE_SENDING;
 import static pk.codebase.requests.HttpError.STAGE_VALIDATING;
 import static pk.codebase.requests.HttpError.UNKNOWN;
 
-import android.net.InetAddresses;
-import android.util.Log;
-
 class HttpBase {
 
-    private HttpURLConnection mConn;
+    private static final int BUFFER_SIZE = 8192;
+    private static final int UPLOAD_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_PRESIZE = 1024 * 1024;
+
+    private final JsonCodec mJsonCodec;
+    private Transport mTransport;
+    private volatile Exchange mConn;
+    private volatile boolean mResponseStarted;
+    private long mRequestStartTime;
+    private long mResponseStartTime;
+    private volatile boolean mCanceled;
     private OutputStream mOutputStream;
+    private boolean mCompressRequest;
+    private byte[] mUploadBuffer;
     private InputStream mInputStream;
     private String mStatusText;
-    private String mResponseText;
+    private HttpHeaders mResponseHeaders;
+    private byte[] mResponseContent;
+    private CountingInputStream mCompressedCounter;
+    private CountingInputStream mUncompressedCounter;
     private short mStatus;
     private HttpRequest.OnFileUploadProgressListener mFileProgressListener;
-    private HttpFileUploadProgress mUploadProgress;
+    private long mProgressIntervalNanos;
+    private long mProgressMinBytes;
+    private int mProgressMinPercent;
+    private long mLastProgressTime;
+    private long mLastProgressBytes;
+    private int mFilesCount;
+    private int mFileNumber;
+    private EventListener mEventListener;
+
+    HttpBase() {
+        this(JsonCodec.getDefault());
+    }
+
+    HttpBase(JsonCodec jsonCodec) {
+        mJsonCodec = jsonCodec;
+        mTransport = Transport.getDefault();
+    }
 
     HttpResponse request(String method, String urlRaw, Object payloadRaw, HttpHeaders headers,
                          HttpOptions options, HttpProxy httpProxy) throws HttpError {
-        int payloadLength = 0;
+        mRequestStartTime = System.nanoTime();
+        long payloadLength = -1;
         Object payload = payloadRaw;
-        if (payloadRaw != null) {
-            if (payloadRaw instanceof FormData) {
-                payloadLength = ((FormData) payloadRaw).getContentLength();
-            } else if (payloadRaw instanceof String) {
-                payloadLength = ((String) payloadRaw).getBytes().length;
-            } else if (payloadRaw instanceof JSONObject) {
-                JSONObject obj = (JSONObject) payloadRaw;
-                payload = obj.toString();
-                payloadLength = ((String) payload).getBytes().length;
-            } else if (payloadRaw instanceof JSONArray) {
-                JSONArray obj = (JSONArray) payloadRaw;
-                payload = obj.toString();
-                payloadLength = ((String) payload).getBytes().length;
-            } else {
-                try {
-                    String pojoPayload = new ObjectMapper().writeValueAsString(payloadRaw);
-                    payloadLength = pojoPayload.getBytes().length;
-                    payload = pojoPayload;
-                } catch (Exception e) {
-                    throw new HttpError(CANNOT_SERIALIZE, STAGE_VALIDATING, e);
-                }
+        if (payloadRaw instanceof FormData) {
+            payloadLength = ((FormData) payloadRaw).getContentLength();
+        } else if (payloadRaw != null) {
+            try {
+                RequestBody body = RequestBody.create(payloadRaw, mJsonCodec, options.isChunked());
+                payloadLength = body.getContentLength();
+                payload = body;
+            } catch (Exception e) {
+                throw new HttpError(CANNOT_SERIALIZE, STAGE_VALIDATING, e);
             }
+        } else if (permitsRequestBody(method)) {
+            // Keep sending an explicit empty body, some servers require a Content-Length here.
+            payload = RequestBody.empty();
+            payloadLength = 0;
+        }
+        // The compressed length is only known once written, so the body goes out chunked.
+        if (payload != null && options.shouldCompressRequest(payloadLength)
+                && headers.getHeader("Content-Encoding") == null) {
+            mCompressRequest = true;
+            payloadLength = -1;
         }
         URL url;
         try {
@@ -111,48 +145,119 @@ class HttpBase {
         } catch (Exception e) {
             throw new HttpError(INVALID_URL, STAGE_VALIDATING, e);
         }
-        connect(method, url, payloadLength, headers, options, httpProxy);
-        send(payload);
-        readResponse();
-        cleanup();
-        return new HttpResponse(mStatus, mStatusText, mResponseText, urlRaw);
+        ConnectionPool pool = ConnectionPool.getDefault();
+        try {
+            connect(method, url, payload != null, payloadLength, headers, options, httpProxy);
+            send(payload);
+            if (payload != null && mEventListener != null) {
+                mEventListener.requestBodyEnd(System.nanoTime());
+            }
+            readResponse(options);
+        } catch (HttpError error) {
+            abort();
+            throw error;
+        }
+        HttpResponse response;
+        if (options.isStream()) {
+            response = new HttpResponse(mStatus, mStatusText, mResponseHeaders,
+                    openResponseBody(pool), urlRaw, mJsonCodec);
+        } else {
+            cleanup(pool);
+            response = new HttpResponse(mStatus, mStatusText, mResponseHeaders, mResponseContent,
+                    urlRaw, mJsonCodec);
+        }
+        response.setByteCounters(mCompressedCounter, mUncompressedCounter);
+        return response;
     }
 
-    void setUploadProgressListener(HttpRequest.OnFileUploadProgressListener listener) {
+    /**
+     * Progress is reported at most once per {@code minIntervalMillis} and only after at least
+     * {@code minBytes} and {@code minPercent} percent more were uploaded. The final update of
+     * each file is always reported.
+     */
+    void setUploadProgressListener(HttpRequest.OnFileUploadProgressListener listener,
+                                   long minIntervalMillis, long minBytes, int minPercent) {
         mFileProgressListener = listener;
+        mProgressIntervalNanos = TimeUnit.MILLISECONDS.toNanos(minIntervalMillis);
+        mProgressMinBytes = minBytes;
+        mProgressMinPercent = minPercent;
+    }
+
+    void setEventListener(EventListener eventListener) {
+        mEventListener = eventListener;
+    }
+
+    void setTransport(Transport transport) {
+        mTransport = transport;
+    }
+
+    /**
+     * Whether the status line and headers have arrived, i.e. the server started responding.
+     */
+    boolean isResponseStarted() {
+        return mResponseStarted;
+    }
+
+    /**
+     * Milliseconds from the start of the request until the response started.
+     */
+    long getTimeToFirstByte() {
+        return TimeUnit.NANOSECONDS.toMillis(mResponseStartTime - mRequestStartTime);
+    }
+
+    /**
+     * Aborts the request from another thread, it then fails with an error in whatever stage
+     * it was in.
+     */
+    void cancel() {
+        mCanceled = true;
+        Exchange connection = mConn;
+        if (connection != null) {
+            connection.disconnect();
+        }
+    }
+
+    private static boolean permitsRequestBody(String method) {
+        return method.equals("POST") || method.equals("PUT") || method.equals("PATCH");
     }
 
-    private void connect(String method, URL url, int payloadLength,
-                         HttpHeaders headers, HttpOptions options, final HttpProxy httpProxy) throws HttpError {
+    private void connect(String method, URL url, boolean hasPayload, long payloadLength,
+                         HttpHeaders headers, HttpOptions options, HttpProxy httpProxy) throws HttpError {
         try {
+            Proxy proxy = null;
             if (httpProxy != null) {
                 if (httpProxy.getUsername() != null && httpProxy.getPassword() != null) {
-                    java.net.Authenticator authenticator = new java.net.Authenticator() {
-
-                        protected java.net.PasswordAuthentication getPasswordAuthentication() {
-                            return new java.net.PasswordAuthentication(httpProxy.getUsername(),
-                                    httpProxy.getPassword().toCharArray());
-                        }
-                    };
-
-                    System.setProperty("java.net.socks.username", httpProxy.getUsername());
-                    System.setProperty("java.net.socks.password", httpProxy.getPassword());
-                    java.net.Authenticator.setDefault(authenticator);
+                    ProxyAuthenticator.register(httpProxy);
                 }
                 SocketAddress socketAddress = new InetSocketAddress(httpProxy.getHost(), httpProxy.getPort());
-                Proxy proxy = new Proxy(Proxy.Type.SOCKS, socketAddress);
-                mConn = (HttpURLConnection) url.openConnection(proxy);
-            } else {
-                mConn = (HttpURLConnection) url.openConnection();
+                proxy = new Proxy(Proxy.Type.SOCKS, socketAddress);
             }
+            mConn = mTransport.newExchange(url, proxy);
             mConn.setRequestMethod(method);
             mConn.setConnectTimeout(options.connectTimeout);
             mConn.setReadTimeout(options.readTimeout);
             for (Map.Entry<String, String> header : headers.entrySet()) {
                 mConn.setRequestProperty(header.getKey(), header.getValue());
             }
-            mConn.setFixedLengthStreamingMode(payloadLength);
-            mConn.connect();
+            // Setting this ourselves also stops Android from transparently decoding gzip, which
+            // would hide the compressed size.
+            if (options.isDecompress() && headers.getHeader("Accept-Encoding") == null) {
+                mConn.setRequestProperty("Accept-Encoding", "gzip, deflate");
+            }
+            if (hasPayload) {
+                if (mCompressRequest) {
+                    mConn.setRequestProperty("Content-Encoding", "gzip");
+                }
+                if (payloadLength >= 0) {
+                    mConn.setFixedLengthStreamingMode(payloadLength);
+                } else {
+                    mConn.setChunkedStreamingMode();
+                }
+            }
+            if (mCanceled) {
+                throw new IOException("Canceled");
+            }
+            mConn.connect(mEventListener);
         } catch (Exception e) {
             HttpError error = new HttpError(STAGE_CONNECTING, e);
             if (e instanceof ConnectException) {
@@ -184,15 +289,18 @@ class HttpBase {
         try {
             if (payload instanceof FormData) {
                 sendForm((FormData) payload);
-            } else {
-                String data = (String) payload;
-                if (data != null) {
-                    write(data);
-                }
+            } else if (payload != null) {
+                ((RequestBody) payload).writeTo(getOutputStream());
+            }
+            // Closing marks the end of the body, the final chunk is only sent at this point.
+            if (mOutputStream != null) {
+                mOutputStream.close();
             }
         } catch (Exception e) {
             HttpError error = new HttpError(STAGE_SENDING, e);
-            if (e instanceof SocketException) {
+            if (e instanceof JsonProcessingException) {
+                error.setCode(CANNOT_SERIALIZE);
+            } else if (e instanceof SocketException) {
                 error.setCode(LOST_CONNECTION);
             } else if (e instanceof SocketTimeoutException) {
                 error.setCode(CONNECTION_TIMED_OUT);
@@ -208,16 +316,14 @@ class HttpBase {
     }
 
     private void sendForm(FormData data) throws Exception {
-        mUploadProgress = new HttpFileUploadProgress(data.getFilesCount());
-        int currentFileNumber = 0;
+        mFilesCount = data.getFilesCount();
         ArrayList<FormData.MultiPartData> requestItems = data.getData();
         for (FormData.MultiPartData item : requestItems) {
             write(item.getPreContentData());
             if (item.getContentType() == FormData.TYPE_CONTENT_TEXT) {
                 write(item.getContent());
             } else {
-                currentFileNumber += 1;
-                mUploadProgress.setFileNumber(currentFileNumber);
+                mFileNumber += 1;
                 writeContent(item.getContent());
             }
             write(item.getPostContentData());
@@ -225,47 +331,93 @@ class HttpBase {
         write(FormData.FINISH_LINE);
     }
 
-    private void write(String body) throws Exception {
+    private OutputStream getOutputStream() throws IOException {
         if (mOutputStream == null) {
             mOutputStream = mConn.getOutputStream();
+            if (mCompressRequest) {
+                mOutputStream = new GZIPOutputStream(mOutputStream, BUFFER_SIZE);
+            }
         }
-        mOutputStream.write(body.getBytes());
-        mOutputStream.flush();
+        return mOutputStream;
     }
 
+    private void write(String body) throws Exception {
+        getOutputStream().write(body.getBytes(RequestBody.UTF_8));
+    }
+
+    // No flush per chunk, the connection stream sends as its buffer fills and is flushed once
+    // when the body is closed.
     private void writeContent(String uploadFilePath) throws Exception {
         File uploadFile = new File(uploadFilePath);
         long total = uploadFile.length();
         long uploaded = 0;
-        if (mOutputStream == null) {
-            mOutputStream = mConn.getOutputStream();
+        // Makes the first chunk of every file pass the throttle.
+        mLastProgressTime = System.nanoTime() - mProgressIntervalNanos;
+        mLastProgressBytes = -mProgressMinBytes;
+        OutputStream outputStream = getOutputStream();
+        if (mUploadBuffer == null) {
+            mUploadBuffer = new byte[UPLOAD_BUFFER_SIZE];
         }
+        byte[] buffer = mUploadBuffer;
         FileInputStream inputStream = new FileInputStream(uploadFile);
-        final byte[] buffer = new byte[512];
-        int bytesRead;
-        while ((bytesRead = inputStream.read(buffer)) != -1) {
-            mOutputStream.write(buffer, 0, bytesRead);
-            mOutputStream.flush();
-            uploaded += bytesRead;
-            if (mFileProgressListener != null) {
-                mUploadProgress.setCurrentFile(uploadFile);
-                mUploadProgress.setUploaded(uploaded);
-                mUploadProgress.setTotal(total);
-                mFileProgressListener.onFileUploadProgress(mUploadProgress);
+        boolean reportedLast = false;
+        try {
+            int bytesRead;
+            while ((bytesRead = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, bytesRead);
+                uploaded += bytesRead;
+                if (mFileProgressListener != null) {
+                    reportedLast = reportProgress(uploadFile, uploaded, total, false);
+                }
             }
+        } finally {
+            inputStream.close();
+        }
+        // Covers empty files and files that changed size while being read.
+        if (mFileProgressListener != null && !reportedLast) {
+            reportProgress(uploadFile, uploaded, total, true);
+        }
+    }
+
+    private boolean reportProgress(File file, long uploaded, long total, boolean last) {
+        long now = System.nanoTime();
+        boolean finished = last || uploaded >= total;
+        if (!finished && (now - mLastProgressTime < mProgressIntervalNanos
+                || uploaded - mLastProgressBytes < mProgressMinBytes
+                || (uploaded - mLastProgressBytes) * 100 < mProgressMinPercent * total)) {
+            return false;
         }
+        mLastProgressTime = now;
+        mLastProgressBytes = uploaded;
+        mFileProgressListener.onFileUploadProgress(
+                new HttpFileUploadProgress(file, uploaded, total, mFileNumber, mFilesCount));
+        return true;
     }
 
-    private void readResponse() throws HttpError {
+    private void readResponse(HttpOptions options) throws HttpError {
         try {
-            mInputStream = mConn.getInputStream();
+            mInputStream = mConn.getResponseBody();
         } catch (IOException ignore) {
-            mInputStream = mConn.getErrorStream();
+            // Surfaces again from getResponseCode() below.
         }
+        mResponseStartTime = System.nanoTime();
+        mResponseStarted = true;
         try {
             mStatus = (short) mConn.getResponseCode();
+            if (mEventListener != null) {
+                mEventListener.responseStart(mStatus, mResponseStartTime);
+            }
             mStatusText = mConn.getResponseMessage();
-            readFromInputStream();
+            readHeaders();
+            if (mInputStream != null && hasResponseBody()) {
+                decodeContent(options.isDecompress());
+            }
+            if (!options.isStream()) {
+                readFromInputStream();
+                if (mEventListener != null) {
+                    mEventListener.responseBodyEnd(System.nanoTime());
+                }
+            }
         } catch (Exception e) {
             if (e instanceof SocketException) {
                 throw new HttpError(LOST_CONNECTION, STAGE_RECEIVING, e);
@@ -277,28 +429,183 @@ class HttpBase {
         }
     }
 
+    private void readHeaders() {
+        mResponseHeaders = new HttpHeaders();
+        for (Map.Entry<String, List<String>> header : mConn.getHeaderFields().entrySet()) {
+            // The status line is reported under a null key.
+            if (header.getKey() == null) {
+                continue;
+            }
+            StringBuilder value = new StringBuilder();
+            for (String item : header.getValue()) {
+                if (value.length() > 0) {
+                    value.append(", ");
+                }
+                value.append(item);
+            }
+            mResponseHeaders.put(header.getKey(), value.toString());
+        }
+    }
+
+    private void decodeContent(boolean decompress) throws IOException {
+        mCompressedCounter = new CountingInputStream(mInputStream);
+        mInputStream = mCompressedCounter;
+        String contentEncoding = mResponseHeaders.getHeader("Content-Encoding");
+        if (!decompress || contentEncoding == null) {
+            return;
+        }
+        contentEncoding = contentEncoding.trim();
+        if (contentEncoding.equalsIgnoreCase("gzip") || contentEncoding.equalsIgnoreCase("x-gzip")) {
+            mInputStream = new GZIPInputStream(mInputStream, BUFFER_SIZE);
+        } else if (contentEncoding.equalsIgnoreCase("deflate")) {
+            mInputStream = openDeflateStream(mInputStream);
+        } else {
+            return;
+        }
+        mUncompressedCounter = new CountingInputStream(mInputStream);
+        mInputStream = mUncompressedCounter;
+        // Both describe the bytes on the wire, not the decoded body.
+        removeResponseHeader("Content-Encoding");
+        removeResponseHeader("Content-Length");
+    }
+
+    // "deflate" is meant to be zlib wrapped, but some servers send a raw deflate stream instead.
+    private static InputStream openDeflateStream(InputStream inputStream) throws IOException {
+        PushbackInputStream pushback = new PushbackInputStream(inputStream, 2);
+        byte[] header = new byte[2];
+        int headerLength = pushback.read(header);
+        if (headerLength > 0) {
+            pushback.unread(header, 0, headerLength);
+        }
+        int cmf = header[0] & 0xFF;
+        int flg = header[1] & 0xFF;
+        boolean zlib = headerLength == 2 && (cmf & 0x0F) == 8 && ((cmf << 8) | flg) % 31 == 0;
+        return new InflaterInputStream(pushback, new Inflater(!zlib), BUFFER_SIZE);
+    }
+
+    private void removeResponseHeader(String name) {
+        Iterator<String> iterator = mResponseHeaders.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().equalsIgnoreCase(name)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private long getResponseContentLength() {
+        String contentLength = mResponseHeaders.getHeader("Content-Length");
+        if (contentLength != null) {
+            try {
+                return Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException ignore) {
+            }
+        }
+        return -1;
+    }
+
+    private boolean hasResponseBody() {
+        return !mConn.getRequestMethod().equals("HEAD")
+                && mStatus != HttpResponse.HTTP_NO_CONTENT
+                && mStatus != HttpResponse.HTTP_NOT_MODIFIED;
+    }
+
     private void readFromInputStream() throws Exception {
-        BufferedReader reader = new BufferedReader(new InputStreamReader(mInputStream));
-        StringBuilder output = new StringBuilder();
-        String line;
-        while ((line = reader.readLine()) != null) {
-            output.append(line).append('\n');
+        if (mInputStream == null || !hasResponseBody()) {
+            mResponseContent = new byte[0];
+            return;
+        }
+        long contentLength = getResponseContentLength();
+        if (contentLength >= 0 && contentLength <= Integer.MAX_VALUE) {
+            mResponseContent = readExactly(mInputStream, (int) contentLength);
+        } else {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int bytesRead;
+            while ((bytesRead = mInputStream.read(buffer)) != -1) {
+                output.write(buffer, 0, bytesRead);
+            }
+            mResponseContent = output.toByteArray();
         }
-        mResponseText = output.toString();
     }
 
-    private void cleanup() throws HttpError {
-        try {
-            if (mOutputStream != null) {
-                mOutputStream.flush();
-                mOutputStream.close();
+    // Reads straight into the final array when the size is known up front. The length comes
+    // from the server, so only up to MAX_PRESIZE is allocated before the bytes actually arrive.
+    private static byte[] readExactly(InputStream inputStream, int length) throws IOException {
+        byte[] content = new byte[Math.min(length, MAX_PRESIZE)];
+        int offset = 0;
+        while (offset < length) {
+            if (offset == content.length) {
+                content = Arrays.copyOf(content, (int) Math.min(length, 2L * content.length));
             }
-            if (mInputStream != null) {
-                mInputStream.close();
+            int bytesRead = inputStream.read(content, offset, content.length - offset);
+            if (bytesRead == -1) {
+                throw new EOFException(String.format(
+                        "Expected %d bytes but the stream ended after %d", length, offset));
             }
-            mConn.disconnect();
+            offset += bytesRead;
+        }
+        return content;
+    }
+
+    private HttpResponseBody openResponseBody(final ConnectionPool pool) {
+        long contentLength = getResponseContentLength();
+        InputStream stream = mInputStream;
+        if (stream == null) {
+            stream = new ByteArrayInputStream(new byte[0]);
+        }
+        return new HttpResponseBody(stream, contentLength, new Closeable() {
+            @Override
+            public void close() throws IOException {
+                try {
+                    release(pool);
+                } catch (IOException e) {
+                    abort();
+                    throw e;
+                }
+                if (mEventListener != null) {
+                    mEventListener.responseBodyEnd(System.nanoTime());
+                }
+            }
+        });
+    }
+
+    private void cleanup(ConnectionPool pool) throws HttpError {
+        try {
+            release(pool);
         } catch (Exception e) {
+            abort();
             throw new HttpError(UNKNOWN, STAGE_CLEANING, e);
         }
     }
+
+    private void release(ConnectionPool pool) throws IOException {
+        // Closing a fully read stream hands the socket back to the keep-alive pool,
+        // disconnecting would throw it away.
+        if (mInputStream != null) {
+            mInputStream.close();
+        }
+        if (!pool.isReuseEnabled()) {
+            mConn.disconnect();
+        }
+    }
+
+    // A connection that failed midway may have unread or unsent bytes left on the
+    // socket, so it must never be returned to the pool. The request body is deliberately
+    // not closed: for a chunked body that would send the final chunk and hand the server a
+    // truncated body as if it were complete.
+    private void abort() {
+        if (mConn != null) {
+            mConn.disconnect();
+        }
+        closeQuietly(mInputStream);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
 }
@@ -0,0 +1,467 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2016-2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pk.codebase.requests;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A disk cache for GET responses that honors Cache-Control, Expires, ETag and Last-Modified.
+ *
+ * Fresh responses are served without touching the network, stale ones are revalidated with a
+ * conditional request and served from disk if the server answers 304 Not Modified. The least
+ * recently used entries are evicted once the cache grows past its maximum size.
+ */
+public class HttpCache {
+
+    private static final String TAG = HttpCache.class.getName();
+    private static final int VERSION = 1;
+    private static final String ENTRY_SUFFIX = ".entry";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File mDirectory;
+    private final long mMaxSize;
+    // Guards only the index, entries are read and written to disk without holding it so that
+    // cached requests do not wait on each other's file I/O.
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final LinkedHashMap<String, Long> mEntrySizes = new LinkedHashMap<>(16, 0.75f, true);
+    private long mSize;
+    private boolean mInitialized;
+
+    public HttpCache(File directory, long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mDirectory = directory;
+        mMaxSize = maxSize;
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+
+    public long getSize() {
+        mLock.lock();
+        try {
+            initialize();
+            return mSize;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public void evictAll() {
+        mLock.lock();
+        try {
+            initialize();
+            for (String key : mEntrySizes.keySet()) {
+                getEntryFile(key).delete();
+            }
+            mEntrySizes.clear();
+            mSize = 0;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    // The directory is only read on first use, which happens on a worker thread.
+    private void initialize() {
+        if (mInitialized) {
+            return;
+        }
+        mInitialized = true;
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "Cannot create cache directory " + mDirectory);
+            return;
+        }
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File first, File second) {
+                long difference = first.lastModified() - second.lastModified();
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(TEMP_SUFFIX)) {
+                file.delete();
+            } else if (name.endsWith(ENTRY_SUFFIX)) {
+                String key = name.substring(0, name.length() - ENTRY_SUFFIX.length());
+                mEntrySizes.put(key, file.length());
+                mSize += file.length();
+            }
+        }
+        trimToSize();
+    }
+
+    Entry get(String url, HttpHeaders requestHeaders, boolean decompress) {
+        if (CacheControl.parse(requestHeaders).noStore) {
+            return null;
+        }
+        String key = getKey(url, decompress);
+        mLock.lock();
+        try {
+            initialize();
+            // A get, rather than containsKey, to also mark the entry as recently used.
+            if (mEntrySizes.get(key) == null) {
+                return null;
+            }
+        } finally {
+            mLock.unlock();
+        }
+        // Entries are replaced by renaming over them, so this reads either the old or the new one.
+        File file = getEntryFile(key);
+        Entry entry;
+        try {
+            entry = Entry.readFrom(file);
+        } catch (IOException e) {
+            Log.d(TAG, e.getMessage(), e);
+            remove(key);
+            return null;
+        }
+        if (!entry.url.equals(url) || !entry.matchesVary(requestHeaders)) {
+            return null;
+        }
+        // Persists the LRU order across restarts.
+        file.setLastModified(System.currentTimeMillis());
+        return entry;
+    }
+
+    void put(String url, HttpHeaders requestHeaders, boolean decompress, HttpResponse response) {
+        String key = getKey(url, decompress);
+        if (!isCacheable(requestHeaders, response)) {
+            // Only a new representation that must not be cached replaces what we had, an error
+            // says nothing about it and the stored entry may still be served.
+            if (response.code == HttpResponse.HTTP_OK) {
+                remove(key);
+            }
+            return;
+        }
+        Entry entry = new Entry(url, response.code, response.reason, response.headers,
+                getVaryHeaders(requestHeaders, response.headers), System.currentTimeMillis(),
+                response.content);
+        write(key, entry);
+    }
+
+    /**
+     * Refreshes an entry with the headers of a 304 Not Modified response and returns the
+     * cached response it stands for.
+     */
+    HttpResponse update(Entry cached, boolean decompress, HttpResponse notModified,
+                        JsonCodec jsonCodec) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.putAll(cached.responseHeaders);
+        for (Map.Entry<String, String> header : notModified.headers.entrySet()) {
+            if (!header.getKey().equalsIgnoreCase("Content-Length")
+                    && !header.getKey().equalsIgnoreCase("Content-Encoding")) {
+                removeHeader(headers, header.getKey());
+                headers.put(header.getKey(), header.getValue());
+            }
+        }
+        Entry entry = new Entry(cached.url, cached.code, cached.reason, headers,
+                cached.varyHeaders, System.currentTimeMillis(), cached.content);
+        write(getKey(cached.url, decompress), entry);
+        return entry.toResponse(jsonCodec);
+    }
+
+    private static boolean isCacheable(HttpHeaders requestHeaders, HttpResponse response) {
+        if (response.code != HttpResponse.HTTP_OK || response.content == null) {
+            return false;
+        }
+        if (CacheControl.parse(requestHeaders).noStore
+                || CacheControl.parse(response.headers).noStore) {
+            return false;
+        }
+        String vary = response.headers.getHeader("Vary");
+        if (vary != null && vary.trim().equals("*")) {
+            return false;
+        }
+        // Without a validator or an expiry there would be nothing to gain from storing it.
+        return response.headers.getHeader("ETag") != null
+                || response.headers.getHeader("Last-Modified") != null
+                || CacheControl.getFreshnessLifetime(response.headers, System.currentTimeMillis()) > 0;
+    }
+
+    private static HttpHeaders getVaryHeaders(HttpHeaders requestHeaders, HttpHeaders responseHeaders) {
+        HttpHeaders varyHeaders = new HttpHeaders();
+        String vary = responseHeaders.getHeader("Vary");
+        if (vary != null) {
+            for (String name : vary.split(",")) {
+                name = name.trim().toLowerCase(Locale.US);
+                String value = requestHeaders == null ? null : requestHeaders.getHeader(name);
+                varyHeaders.put(name, value == null ? "" : value);
+            }
+        }
+        return varyHeaders;
+    }
+
+    private static void removeHeader(HttpHeaders headers, String name) {
+        Iterator<String> iterator = headers.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().equalsIgnoreCase(name)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    // The entry is written to a temporary file of its own without holding the lock, only the
+    // rename into place and the index update happen under it.
+    private void write(String key, Entry entry) {
+        File file = getEntryFile(key);
+        File temp = null;
+        mLock.lock();
+        try {
+            initialize();
+        } finally {
+            mLock.unlock();
+        }
+        try {
+            temp = File.createTempFile(key, TEMP_SUFFIX, mDirectory);
+            entry.writeTo(temp);
+        } catch (IOException e) {
+            Log.d(TAG, e.getMessage(), e);
+            if (temp != null) {
+                temp.delete();
+            }
+            remove(key);
+            return;
+        }
+        mLock.lock();
+        try {
+            if (!temp.renameTo(file)) {
+                Log.d(TAG, "Cannot rename " + temp + " to " + file);
+                temp.delete();
+                removeEntry(key);
+                return;
+            }
+            Long previousSize = mEntrySizes.put(key, file.length());
+            if (previousSize != null) {
+                mSize -= previousSize;
+            }
+            mSize += file.length();
+            trimToSize();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void remove(String key) {
+        mLock.lock();
+        try {
+            initialize();
+            removeEntry(key);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void removeEntry(String key) {
+        Long size = mEntrySizes.remove(key);
+        if (size != null) {
+            mSize -= size;
+        }
+        getEntryFile(key).delete();
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Long>> iterator = mEntrySizes.entrySet().iterator();
+        while (mSize > mMaxSize && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            mSize -= eldest.getValue();
+            getEntryFile(eldest.getKey()).delete();
+        }
+    }
+
+    private File getEntryFile(String key) {
+        return new File(mDirectory, key + ENTRY_SUFFIX);
+    }
+
+    // Raw bodies keep their Content-Encoding, so they are stored apart from the decoded ones.
+    private static String getKey(String url, boolean decompress) {
+        byte[] name = (decompress ? url : url + "\nraw").getBytes(RequestBody.UTF_8);
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(name);
+            StringBuilder key = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                key.append(String.format("%02x", b));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    static final class Entry {
+        final String url;
+        final int code;
+        final String reason;
+        final HttpHeaders responseHeaders;
+        final HttpHeaders varyHeaders;
+        final long receivedAt;
+        final byte[] content;
+
+        private Entry(String url, int code, String reason, HttpHeaders responseHeaders,
+                      HttpHeaders varyHeaders, long receivedAt, byte[] content) {
+            this.url = url;
+            this.code = code;
+            this.reason = reason;
+            this.responseHeaders = responseHeaders;
+            this.varyHeaders = varyHeaders;
+            this.receivedAt = receivedAt;
+            this.content = content;
+        }
+
+        /**
+         * Whether the entry can be served without revalidation. A request with no-cache always
+         * revalidates, and one with max-age caps how old a response it accepts.
+         */
+        boolean isFresh(HttpHeaders requestHeaders) {
+            CacheControl requestCacheControl = CacheControl.parse(requestHeaders);
+            if (requestCacheControl.noCache) {
+                return false;
+            }
+            long age = System.currentTimeMillis() - receivedAt
+                    + CacheControl.getInitialAge(responseHeaders);
+            long lifetime = CacheControl.getFreshnessLifetime(responseHeaders, receivedAt);
+            if (requestCacheControl.maxAgeSeconds >= 0) {
+                lifetime = Math.min(lifetime,
+                        TimeUnit.SECONDS.toMillis(requestCacheControl.maxAgeSeconds));
+            }
+            return age < lifetime;
+        }
+
+        /**
+         * @return a copy of the request headers that asks the server to answer 304 Not Modified
+         * if this entry is still current.
+         */
+        HttpHeaders addConditions(HttpHeaders requestHeaders) {
+            HttpHeaders headers = new HttpHeaders();
+            if (requestHeaders != null) {
+                headers.putAll(requestHeaders);
+            }
+            String etag = responseHeaders.getHeader("ETag");
+            String lastModified = responseHeaders.getHeader("Last-Modified");
+            if (etag != null) {
+                headers.put("If-None-Match", etag);
+            } else if (lastModified != null) {
+                headers.put("If-Modified-Since", lastModified);
+            }
+            return headers;
+        }
+
+        boolean matchesVary(HttpHeaders requestHeaders) {
+            for (Map.Entry<String, String> header : varyHeaders.entrySet()) {
+                String value = requestHeaders == null ? null : requestHeaders.getHeader(header.getKey());
+                if (!header.getValue().equals(value == null ? "" : value)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        HttpResponse toResponse(JsonCodec jsonCodec) {
+            return new HttpResponse(code, reason, responseHeaders, content, url, jsonCodec);
+        }
+
+        void writeTo(File file) throws IOException {
+            DataOutputStream output = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file)));
+            try {
+                output.writeInt(VERSION);
+                output.writeUTF(url);
+                output.writeInt(code);
+                output.writeUTF(reason == null ? "" : reason);
+                output.writeLong(receivedAt);
+                writeHeaders(output, responseHeaders);
+                writeHeaders(output, varyHeaders);
+                output.writeInt(content.length);
+                output.write(content);
+            } finally {
+                output.close();
+            }
+        }
+
+        static Entry readFrom(File file) throws IOException {
+            DataInputStream input = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (input.readInt() != VERSION) {
+                    throw new IOException("Unsupported cache entry version in " + file);
+                }
+                String url = input.readUTF();
+                int code = input.readInt();
+                String reason = input.readUTF();
+                long receivedAt = input.readLong();
+                HttpHeaders responseHeaders = readHeaders(input);
+                HttpHeaders varyHeaders = readHeaders(input);
+                byte[] content = new byte[input.readInt()];
+                input.readFully(content);
+                return new Entry(url, code, reason, responseHeaders, varyHeaders, receivedAt,
+                        content);
+            } finally {
+                input.close();
+            }
+        }
+
+        private static void writeHeaders(DataOutputStream output, HttpHeaders headers)
+                throws IOException {
+            output.writeInt(headers.size());
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                output.writeUTF(header.getKey());
+                output.writeUTF(header.getValue());
+            }
+        }
+
+        private static HttpHeaders readHeaders(DataInputStream input) throws IOException {
+            HttpHeaders headers = new HttpHeaders();
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                headers.put(input.readUTF(), input.readUTF());
+            }
+            return headers;
+        }
+    }
+}
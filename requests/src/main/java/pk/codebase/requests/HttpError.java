@@ -26,6 +26,7 @@ public class HttpError extends Exception {
     public static final short STAGE_SENDING = 3;
     public static final short STAGE_RECEIVING = 4;
     public static final short STAGE_CLEANING = 5;
+    public static final short STAGE_QUEUEING = 6;
 
     public static final short UNKNOWN = 0;
     public static final short INVALID_URL = 1;
@@ -38,6 +39,8 @@ public class HttpError extends Exception {
     public static final short CONNECTION_TIMED_OUT = 8;
     public static final short LOST_CONNECTION = 9;
     public static final short CANNOT_SERIALIZE = 10;
+    public static final short REQUEST_REJECTED = 11;
+    public static final short CIRCUIT_OPEN = 12;
 
     public short code = UNKNOWN;
     public final short stage;
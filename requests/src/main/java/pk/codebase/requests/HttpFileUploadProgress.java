@@ -20,30 +20,21 @@ package pk.codebase.requests;
 
 import java.io.File;
 
+/**
+ * An immutable snapshot of an upload, safe to hand to another thread.
+ */
 public class HttpFileUploadProgress {
-    public File file;
-    public long uploaded;
-    public long total;
-    public int fileNumber;
-    public int filesCount;
-
-    HttpFileUploadProgress(int count) {
-        filesCount = count;
-    }
-
-    void setCurrentFile(File currentFile) {
-        this.file = currentFile;
-    }
-
-    void setUploaded(long uploaded) {
+    public final File file;
+    public final long uploaded;
+    public final long total;
+    public final int fileNumber;
+    public final int filesCount;
+
+    HttpFileUploadProgress(File file, long uploaded, long total, int fileNumber, int filesCount) {
+        this.file = file;
         this.uploaded = uploaded;
-    }
-
-    void setTotal(long total) {
         this.total = total;
-    }
-
-    void setFileNumber(int fileNumber) {
         this.fileNumber = fileNumber;
+        this.filesCount = filesCount;
     }
 }
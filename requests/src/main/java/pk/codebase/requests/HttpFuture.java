@@ -0,0 +1,243 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2016-2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pk.codebase.requests;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The pending result of a single request, returned by the {@code *Async} methods of
+ * {@link HttpRequest}. Wait for it with {@link #get()}, or set listeners that are called for
+ * this request only, through the callback executor of the {@link HttpRequest}.
+ *
+ * {@link #get()} reports an {@link HttpError} as the cause of an {@link ExecutionException}.
+ * Cancelling only discards the result, a request that is already running is not aborted.
+ */
+public class HttpFuture implements Future<HttpResponse> {
+
+    private final HttpRequest mRequest;
+    // Not the object monitor, a virtual thread waiting on it would pin its carrier thread.
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mCompleted = mLock.newCondition();
+    private HttpRequest.OnResponseListener mOnResponseListener;
+    private HttpRequest.OnErrorListener mOnErrorListener;
+    private HttpResponse mResponse;
+    private HttpError mError;
+    private boolean mDone;
+    private boolean mCanceled;
+    private boolean mDelivered;
+
+    HttpFuture(HttpRequest request) {
+        mRequest = request;
+    }
+
+    /**
+     * Called once with the response, immediately if it already arrived.
+     */
+    public HttpFuture setOnResponseListener(HttpRequest.OnResponseListener listener) {
+        mLock.lock();
+        try {
+            mOnResponseListener = listener;
+        } finally {
+            mLock.unlock();
+        }
+        deliver();
+        return this;
+    }
+
+    /**
+     * Called once with the error, immediately if the request already failed.
+     */
+    public HttpFuture setOnErrorListener(HttpRequest.OnErrorListener listener) {
+        mLock.lock();
+        try {
+            mOnErrorListener = listener;
+        } finally {
+            mLock.unlock();
+        }
+        deliver();
+        return this;
+    }
+
+    void complete(HttpResponse response) {
+        boolean canceled;
+        mLock.lock();
+        try {
+            canceled = mDone;
+            if (!canceled) {
+                mResponse = response;
+                mDone = true;
+                mCompleted.signalAll();
+            }
+        } finally {
+            mLock.unlock();
+        }
+        if (canceled) {
+            // Nobody will ever read a streamed body.
+            closeQuietly(response.body);
+            return;
+        }
+        deliver();
+    }
+
+    void fail(HttpError error) {
+        mLock.lock();
+        try {
+            if (mDone) {
+                return;
+            }
+            mError = error;
+            mDone = true;
+            mCompleted.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+        deliver();
+    }
+
+    private void deliver() {
+        final HttpResponse response;
+        final HttpError error;
+        final HttpRequest.OnResponseListener onResponseListener;
+        final HttpRequest.OnErrorListener onErrorListener;
+        mLock.lock();
+        try {
+            response = mResponse;
+            error = mError;
+            onResponseListener = mOnResponseListener;
+            onErrorListener = mOnErrorListener;
+            boolean ready = response != null ? onResponseListener != null
+                    : error != null && onErrorListener != null;
+            if (mDelivered || mCanceled || !ready) {
+                return;
+            }
+            mDelivered = true;
+        } finally {
+            mLock.unlock();
+        }
+        if (response != null) {
+            mRequest.getCallbackExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    onResponseListener.onResponse(response);
+                }
+            });
+        } else {
+            mRequest.getCallbackExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    onErrorListener.onError(error);
+                }
+            });
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        mLock.lock();
+        try {
+            if (mDone) {
+                return false;
+            }
+            mCanceled = true;
+            mDone = true;
+            mCompleted.signalAll();
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isCancelled() {
+        mLock.lock();
+        try {
+            return mCanceled;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isDone() {
+        mLock.lock();
+        try {
+            return mDone;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public HttpResponse get() throws InterruptedException, ExecutionException {
+        mLock.lock();
+        try {
+            while (!mDone) {
+                mCompleted.await();
+            }
+            return getResult();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public HttpResponse get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long remaining = unit.toNanos(timeout);
+        mLock.lock();
+        try {
+            while (!mDone) {
+                if (remaining <= 0) {
+                    throw new TimeoutException();
+                }
+                remaining = mCompleted.awaitNanos(remaining);
+            }
+            return getResult();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private HttpResponse getResult() throws ExecutionException {
+        if (mCanceled) {
+            throw new CancellationException();
+        }
+        if (mError != null) {
+            throw new ExecutionException(mError);
+        }
+        return mResponse;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+}
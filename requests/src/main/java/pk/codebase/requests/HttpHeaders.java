@@ -30,4 +30,20 @@ public class HttpHeaders extends HashMap<String, String> {
         super();
         put(key, value);
     }
+
+    /**
+     * Looks up a header ignoring the case of its name, as HTTP header names are case insensitive.
+     */
+    public String getHeader(String name) {
+        String value = get(name);
+        if (value != null) {
+            return value;
+        }
+        for (Entry<String, String> header : entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
 }
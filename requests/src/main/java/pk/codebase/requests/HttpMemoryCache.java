@@ -0,0 +1,189 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2016-2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pk.codebase.requests;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded in-memory cache of GET responses. Entries are keyed on the method, the resolved URL
+ * and the values of the configured vary headers, expire after their time to live, and are evicted
+ * least recently used first once their combined size exceeds the maximum.
+ *
+ * A hit is delivered straight from the calling thread without queueing on the dispatcher.
+ */
+public class HttpMemoryCache {
+
+    // Rough per entry overhead for the key, headers and bookkeeping objects.
+    private static final int ENTRY_OVERHEAD = 256;
+
+    private final long mMaxSize;
+    private final long mDefaultTimeToLive;
+    private final String[] mVaryHeaders;
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mSize;
+    private long mHitCount;
+    private long mMissCount;
+    private long mEvictionCount;
+
+    /**
+     * @param maxSize the maximum combined size of all cached responses, in bytes.
+     * @param defaultTimeToLive milliseconds a response is cached for, unless its Cache-Control
+     *                          max-age says otherwise.
+     * @param varyHeaders request headers whose values are part of the cache key.
+     */
+    public HttpMemoryCache(long maxSize, long defaultTimeToLive, String... varyHeaders) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+        mDefaultTimeToLive = defaultTimeToLive;
+        mVaryHeaders = varyHeaders;
+    }
+
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    public synchronized void evictAll() {
+        mEntries.clear();
+        mSize = 0;
+    }
+
+    synchronized HttpResponse get(String method, String url, HttpHeaders headers) {
+        // Like the disk cache, a request with no-cache always goes to the network and one with
+        // max-age caps how old a response it accepts.
+        CacheControl cacheControl = CacheControl.parse(headers);
+        if (cacheControl.noStore || cacheControl.noCache) {
+            mMissCount += 1;
+            return null;
+        }
+        String key = getKey(method, url, headers);
+        Entry entry = mEntries.get(key);
+        long now = System.nanoTime();
+        if (entry != null && entry.expiresAt - now <= 0) {
+            remove(key);
+            entry = null;
+        }
+        if (entry != null && cacheControl.maxAgeSeconds >= 0
+                && entry.getAge(now) >= TimeUnit.SECONDS.toMillis(cacheControl.maxAgeSeconds)) {
+            // Still fresh for requests that accept it, so it is kept.
+            entry = null;
+        }
+        if (entry == null) {
+            mMissCount += 1;
+            return null;
+        }
+        mHitCount += 1;
+        return entry.response;
+    }
+
+    synchronized void put(String method, String url, HttpHeaders headers, HttpResponse response) {
+        if (response.content == null || response.code < 200 || response.code >= 300
+                || CacheControl.parse(headers).noStore) {
+            return;
+        }
+        long timeToLive = getTimeToLive(response);
+        long weight = response.content.length + ENTRY_OVERHEAD;
+        if (timeToLive <= 0 || weight > mMaxSize) {
+            return;
+        }
+        String key = getKey(method, url, headers);
+        remove(key);
+        long now = System.nanoTime();
+        mEntries.put(key, new Entry(response, weight, now,
+                now + TimeUnit.MILLISECONDS.toNanos(timeToLive)));
+        mSize += weight;
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while (mSize > mMaxSize && iterator.hasNext()) {
+            mSize -= iterator.next().weight;
+            iterator.remove();
+            mEvictionCount += 1;
+        }
+    }
+
+    private void remove(String key) {
+        Entry entry = mEntries.remove(key);
+        if (entry != null) {
+            mSize -= entry.weight;
+        }
+    }
+
+    private long getTimeToLive(HttpResponse response) {
+        CacheControl cacheControl = CacheControl.parse(response.headers);
+        if (cacheControl.noStore || cacheControl.noCache) {
+            return 0;
+        }
+        if (cacheControl.maxAgeSeconds >= 0) {
+            return TimeUnit.SECONDS.toMillis(cacheControl.maxAgeSeconds)
+                    - CacheControl.getInitialAge(response.headers);
+        }
+        return mDefaultTimeToLive;
+    }
+
+    private String getKey(String method, String url, HttpHeaders headers) {
+        StringBuilder key = new StringBuilder(method).append(' ').append(url);
+        for (String name : mVaryHeaders) {
+            String value = headers == null ? null : headers.getHeader(name);
+            key.append('\n').append(name).append(':');
+            if (value != null) {
+                key.append(value);
+            }
+        }
+        return key.toString();
+    }
+
+    private static final class Entry {
+        final HttpResponse response;
+        final long weight;
+        final long receivedAt;
+        final long expiresAt;
+
+        Entry(HttpResponse response, long weight, long receivedAt, long expiresAt) {
+            this.response = response;
+            this.weight = weight;
+            this.receivedAt = receivedAt;
+            this.expiresAt = expiresAt;
+        }
+
+        // In milliseconds, including the age the response already had when it was received.
+        long getAge(long now) {
+            return TimeUnit.NANOSECONDS.toMillis(now - receivedAt)
+                    + CacheControl.getInitialAge(response.headers);
+        }
+    }
+}
@@ -21,10 +21,16 @@ package pk.codebase.requests;
 public class HttpOptions {
 
     private static final int DEFAULT_TIMEOUT = 15000; // 15 seconds
+    private static final long DEFAULT_COMPRESSION_THRESHOLD = 1024; // 1 KiB
 
     public final int connectTimeout;
     public final int readTimeout;
 
+    private boolean mStream;
+    private boolean mChunked;
+    private boolean mDecompress = true;
+    private long mCompressionThreshold = -1;
+
     public HttpOptions(int connectTimeout, int readTimeout) {
         this.connectTimeout = connectTimeout;
         this.readTimeout = readTimeout;
@@ -39,4 +45,67 @@ public class HttpOptions {
         this.connectTimeout = connectTimeout;
         this.readTimeout = DEFAULT_TIMEOUT;
     }
+
+    /**
+     * When enabled the response body is not read up front; it is handed to the
+     * {@link HttpRequest.OnResponseListener} as {@link HttpResponse#body} on the worker thread
+     * and must be closed by the listener.
+     */
+    public HttpOptions setStream(boolean stream) {
+        mStream = stream;
+        return this;
+    }
+
+    boolean isStream() {
+        return mStream;
+    }
+
+    /**
+     * When enabled the request body is sent with chunked transfer encoding, which lets POJO
+     * payloads be serialized straight into the connection instead of into memory first.
+     */
+    public HttpOptions setChunked(boolean chunked) {
+        mChunked = chunked;
+        return this;
+    }
+
+    boolean isChunked() {
+        return mChunked;
+    }
+
+    /**
+     * Controls whether gzip and deflate encoded responses are requested and decoded. Enabled by
+     * default; when disabled the body is returned exactly as sent by the server.
+     */
+    public HttpOptions setDecompress(boolean decompress) {
+        mDecompress = decompress;
+        return this;
+    }
+
+    boolean isDecompress() {
+        return mDecompress;
+    }
+
+    /**
+     * Sends request bodies of at least 1 KiB gzip compressed, with Content-Encoding: gzip.
+     */
+    public HttpOptions setCompressRequest(boolean compress) {
+        return setCompressRequest(compress ? DEFAULT_COMPRESSION_THRESHOLD : -1);
+    }
+
+    /**
+     * Sends request bodies gzip compressed once they are at least {@code threshold} bytes,
+     * bodies of unknown length are always compressed. A negative threshold disables compression.
+     */
+    public HttpOptions setCompressRequest(long threshold) {
+        mCompressionThreshold = threshold;
+        return this;
+    }
+
+    boolean shouldCompressRequest(long contentLength) {
+        if (mCompressionThreshold < 0 || contentLength == 0) {
+            return false;
+        }
+        return contentLength < 0 || contentLength >= mCompressionThreshold;
+    }
 }
@@ -18,13 +18,26 @@
 
 package pk.codebase.requests;
 
-import android.os.Handler;
-import android.os.Looper;
-
-import java.util.concurrent.ExecutorService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class HttpRequest {
+    private static final long DEFAULT_PROGRESS_INTERVAL = 100; // milliseconds
+
+    private static ScheduledExecutorService sRetryScheduler;
+
     private final String CONTENT_TYPE_JSON = "application/json";
     private final String CONTENT_TYPE_FORM = String.format(
             "multipart/form-data; boundary=%s", FormData.BOUNDARY);
@@ -32,10 +45,23 @@ public class HttpRequest {
 
     private OnErrorListener mOnErrorListener;
     private OnFileUploadProgressListener mOnFileUploadProgressListener;
+    private long mFileUploadProgressInterval = DEFAULT_PROGRESS_INTERVAL;
+    private long mFileUploadProgressMinBytes;
+    private int mFileUploadProgressMinPercent;
     private OnResponseListener mOnResponseListener;
-
-    private ExecutorService mThread;
-    private Handler mHandler;
+    private final Callback mListenerCallback = newListenerCallback(null);
+
+    private Dispatcher mDispatcher;
+    private Transport mTransport;
+    private JsonCodec mJsonCodec;
+    private HttpCache mCache;
+    private HttpMemoryCache mMemoryCache;
+    private boolean mSingleFlight;
+    private RetryPolicy mRetryPolicy;
+    private HedgingPolicy mHedgingPolicy;
+    private CircuitBreaker mCircuitBreaker;
+    private EventListener.Factory mEventListenerFactory;
+    private Executor mCallbackExecutor;
     private final String mBaseURL;
 
     public HttpRequest() {
@@ -43,8 +69,9 @@ public class HttpRequest {
     }
 
     public HttpRequest(String baseURL) {
-        mHandler = new Handler(Looper.getMainLooper());
-        mThread = Executors.newSingleThreadExecutor();
+        mDispatcher = Dispatcher.getDefault();
+        mTransport = Transport.getDefault();
+        mJsonCodec = JsonCodec.getDefault();
         mBaseURL = baseURL;
     }
 
@@ -68,12 +95,121 @@ public class HttpRequest {
         mOnFileUploadProgressListener = listener;
     }
 
+    /**
+     * Limits upload progress events to one per {@code minIntervalMillis} and to changes of at
+     * least {@code minBytes}; the final event of each file is always delivered. Events that pile
+     * up while the listener thread is busy are coalesced into the latest one.
+     */
+    public void setFileUploadProgressThrottle(long minIntervalMillis, long minBytes) {
+        setFileUploadProgressThrottle(minIntervalMillis, minBytes, 0);
+    }
+
+    /**
+     * Like {@link #setFileUploadProgressThrottle(long, long)}, additionally requiring changes of
+     * at least {@code minPercent} percent of the file.
+     */
+    public void setFileUploadProgressThrottle(long minIntervalMillis, long minBytes,
+                                              int minPercent) {
+        mFileUploadProgressInterval = minIntervalMillis;
+        mFileUploadProgressMinBytes = minBytes;
+        mFileUploadProgressMinPercent = minPercent;
+    }
+
     public void setOnResponseListener(OnResponseListener listener) {
         mOnResponseListener = listener;
     }
 
-    private void actuallyRequest(String method, String rawURL, Object payload, HttpHeaders headers,
-                                 HttpOptions options, HttpProxy httpProxy) {
+    /**
+     * Sets where listeners are called, the main thread by default. See {@link CallbackExecutors}
+     * for delivering directly on the worker thread instead.
+     */
+    public void setCallbackExecutor(Executor callbackExecutor) {
+        mCallbackExecutor = callbackExecutor;
+    }
+
+    Executor getCallbackExecutor() {
+        Executor executor = mCallbackExecutor;
+        if (executor == null) {
+            executor = CallbackExecutors.mainThread();
+            mCallbackExecutor = executor;
+        }
+        return executor;
+    }
+
+    public void setDispatcher(Dispatcher dispatcher) {
+        mDispatcher = dispatcher;
+    }
+
+    /**
+     * Sets the engine that sends the requests, e.g. a shared {@link NioTransport}.
+     */
+    public void setTransport(Transport transport) {
+        mTransport = transport;
+    }
+
+    /**
+     * Enables caching of GET responses on disk, pass null to disable it again.
+     */
+    public void setCache(HttpCache cache) {
+        mCache = cache;
+    }
+
+    /**
+     * Enables an in-memory cache of GET responses, pass null to disable it again. It is checked
+     * before the disk cache set with {@link #setCache(HttpCache)}.
+     */
+    public void setMemoryCache(HttpMemoryCache cache) {
+        mMemoryCache = cache;
+    }
+
+    /**
+     * When enabled, a GET issued while an identical one (same URL, headers, options and proxy) is
+     * still in flight does not make its own request; it receives the response or error of the one
+     * in flight. Requests from all HttpRequest instances that share an ObjectMapper are coalesced.
+     */
+    public void setSingleFlight(boolean singleFlight) {
+        mSingleFlight = singleFlight;
+    }
+
+    /**
+     * Retries failed requests according to the policy, pass null to disable retries again.
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        mRetryPolicy = retryPolicy;
+    }
+
+    /**
+     * Hedges slow GET requests according to the policy, pass null to disable hedging again.
+     */
+    public void setHedgingPolicy(HedgingPolicy hedgingPolicy) {
+        mHedgingPolicy = hedgingPolicy;
+    }
+
+    /**
+     * Fails requests fast while their host looks down, pass null to disable it again.
+     * The same breaker can be shared between instances.
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        mCircuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Reports the timeline of each request to a listener created by the factory, pass null to
+     * stop. Without a factory no events are created at all.
+     */
+    public void setEventListenerFactory(EventListener.Factory eventListenerFactory) {
+        mEventListenerFactory = eventListenerFactory;
+    }
+
+    /**
+     * Sets the mapper used to serialize POJO payloads and to parse {@link HttpResponse#toPOJO}.
+     * The mapper must be fully configured before it is set, as its readers and writers are cached.
+     */
+    public void setObjectMapper(ObjectMapper mapper) {
+        mJsonCodec = new JsonCodec(mapper);
+    }
+
+    private String resolveURL(String rawURL) {
         String url = rawURL;
         if (url != null) {
             if (!url.startsWith("http") && !mBaseURL.isEmpty()) {
@@ -86,46 +222,415 @@ public class HttpRequest {
                 }
             }
         }
-        HttpBase http = new HttpBase();
-        http.setUploadProgressListener(new OnFileUploadProgressListener() {
+        return url;
+    }
+
+    private static String getHost(String url) {
+        try {
+            return new URL(url).getHost();
+        } catch (MalformedURLException e) {
+            // Let the request fail validation on the worker thread as usual.
+            return "";
+        }
+    }
+
+    private void actuallyRequest(Call call) {
+        // The circuit may have opened while this request waited in the queue or for a retry.
+        if (call.circuitBreaker != null && call.circuitBreaker.isOpen(call.host)) {
+            HttpError error = newCircuitOpenError(call.host);
+            call.circuitBreaker.record(call.host, error);
+            call.callback.onError(error);
+            return;
+        }
+        HttpResponse response;
+        try {
+            response = execute(call);
+            if (response == null) {
+                // Another attempt was scheduled.
+                return;
+            }
+        } catch (HttpError error) {
+            fail(call, error);
+            return;
+        } catch (Exception e) {
+            fail(call, new HttpError(HttpError.UNKNOWN, HttpError.STAGE_UNKNOWN, e));
+            return;
+        }
+        if (call.circuitBreaker != null) {
+            if (call.fromCache) {
+                call.circuitBreaker.recordIgnored(call.host);
+            } else {
+                call.circuitBreaker.record(call.host, response);
+            }
+        }
+        // Outside the try, with a direct callback executor the listener runs right here and
+        // whatever it throws must not turn the delivered response into an error as well.
+        call.callback.onResponse(response);
+    }
+
+    private static void fail(Call call, HttpError error) {
+        if (call.circuitBreaker != null) {
+            call.circuitBreaker.record(call.host, error);
+        }
+        call.callback.onError(error);
+    }
+
+    private Callback newListenerCallback(final EventListener eventListener) {
+        return new Callback() {
+            @Override
+            public void onResponse(HttpResponse response) {
+                if (response.body != null) {
+                    deliverStreamingResponse(response, eventListener);
+                } else {
+                    emitOnResponse(response, eventListener);
+                }
+            }
+
+            @Override
+            public void onError(HttpError error) {
+                if (eventListener != null) {
+                    eventListener.callFailed(error, System.nanoTime());
+                }
+                emitOnError(error, eventListener);
+            }
+        };
+    }
+
+    private static Callback newFutureCallback(final HttpFuture future,
+                                              final EventListener eventListener) {
+        return new Callback() {
+            @Override
+            public void onResponse(HttpResponse response) {
+                future.complete(response);
+                if (eventListener != null) {
+                    eventListener.callbackDelivered(System.nanoTime());
+                }
+            }
+
+            @Override
+            public void onError(HttpError error) {
+                if (eventListener != null) {
+                    eventListener.callFailed(error, System.nanoTime());
+                }
+                future.fail(error);
+                if (eventListener != null) {
+                    eventListener.callbackDelivered(System.nanoTime());
+                }
+            }
+        };
+    }
+
+    private static HttpError newCircuitOpenError(String host) {
+        return new HttpError(HttpError.CIRCUIT_OPEN, HttpError.STAGE_QUEUEING,
+                new IOException("Circuit breaker is open for " + host));
+    }
+
+    /**
+     * @return the response, or null if the attempt failed and another one was scheduled.
+     */
+    private HttpResponse execute(Call call) throws HttpError {
+        HttpResponse response = null;
+        if (call.networkHeaders == null) {
+            // Only looked up before the first attempt.
+            response = getFromDiskCache(call);
+        }
+        if (response == null) {
+            response = executeWithRetry(call);
+            if (response == null) {
+                return null;
+            }
+            response = storeInDiskCache(call, response);
+        }
+        HttpMemoryCache memoryCache = mMemoryCache;
+        if (memoryCache != null && isCacheable(call.method, call.options)) {
+            memoryCache.put(call.method, call.url, call.headers, response);
+        }
+        return response;
+    }
+
+    private HttpResponse getFromDiskCache(Call call) {
+        call.networkHeaders = call.headers;
+        HttpCache cache = mCache;
+        if (cache == null || !isCacheable(call.method, call.options)) {
+            return null;
+        }
+        call.cached = cache.get(call.url, call.headers, call.options.isDecompress());
+        if (call.cached == null) {
+            return null;
+        }
+        if (call.cached.isFresh(call.headers)) {
+            call.fromCache = true;
+            return call.cached.toResponse(mJsonCodec);
+        }
+        call.networkHeaders = call.cached.addConditions(call.headers);
+        return null;
+    }
+
+    private HttpResponse storeInDiskCache(Call call, HttpResponse response) {
+        HttpCache cache = mCache;
+        if (cache == null || !isCacheable(call.method, call.options)) {
+            return response;
+        }
+        if (call.cached != null && response.code == HttpResponse.HTTP_NOT_MODIFIED) {
+            return cache.update(call.cached, call.options.isDecompress(), response, mJsonCodec);
+        }
+        cache.put(call.url, call.headers, call.options.isDecompress(), response);
+        return response;
+    }
+
+    // Blocking calls wait for the next attempt right here. Others must not hold a dispatcher
+    // slot while waiting, so their next attempt is scheduled and queued again like a new request.
+    private HttpResponse executeWithRetry(Call call) throws HttpError {
+        RetryPolicy retryPolicy = call.retryPolicy;
+        while (true) {
+            HttpResponse response;
+            try {
+                response = executeAttempt(call.method, call.url, call.payload, call.networkHeaders,
+                        call.options, call.httpProxy, call.eventListener);
+            } catch (HttpError error) {
+                if (retryPolicy == null || call.attempt >= retryPolicy.maxAttempts
+                        || !retryPolicy.shouldRetry(call.method, error)) {
+                    throw error;
+                }
+                long delay = retryPolicy.getDelay(call.attempt, null);
+                call.attempt += 1;
+                if (!call.blocking) {
+                    scheduleRetry(call, delay);
+                    return null;
+                }
+                if (!sleep(delay)) {
+                    throw error;
+                }
+                continue;
+            }
+            if (retryPolicy == null || call.attempt >= retryPolicy.maxAttempts
+                    || !retryPolicy.shouldRetry(call.method, response)) {
+                return response;
+            }
+            long delay = retryPolicy.getDelay(call.attempt, response);
+            if (delay < 0) {
+                return response;
+            }
+            if (response.body != null) {
+                closeQuietly(response.body);
+            }
+            call.attempt += 1;
+            if (!call.blocking) {
+                scheduleRetry(call, delay);
+                return null;
+            }
+            if (!sleep(delay)) {
+                throw new HttpError(HttpError.UNKNOWN, HttpError.STAGE_UNKNOWN,
+                        new InterruptedException("Interrupted while waiting to retry"));
+            }
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getRetryScheduler() {
+        if (sRetryScheduler == null) {
+            sRetryScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Requests Retry Scheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sRetryScheduler;
+    }
+
+    private void scheduleRetry(final Call call, long delay) {
+        getRetryScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                enqueue(call, call);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private HttpResponse executeAttempt(final String method, final String url,
+                                        final Object payload, final HttpHeaders headers,
+                                        final HttpOptions options, final HttpProxy httpProxy,
+                                        final EventListener eventListener) throws HttpError {
+        HedgingPolicy hedgingPolicy = mHedgingPolicy;
+        if (hedgingPolicy == null || !method.equals("GET")) {
+            return newHttpBase(eventListener).request(method, url, payload, headers, options,
+                    httpProxy);
+        }
+        return new HedgedCall(hedgingPolicy, getHost(url), new HedgedCall.Attempt() {
             @Override
-            public void onFileUploadProgress(HttpFileUploadProgress progress) {
-                emitOnFileUploadProgress(progress);
+            public HttpBase create() {
+                return newHttpBase(eventListener);
             }
-        });
-        HttpHeaders actualHeaders = headers;
-        if (actualHeaders == null) {
-            actualHeaders = new HttpHeaders();
-        }
-        HttpOptions actualOptions = options;
-        if (actualOptions == null) {
-            actualOptions = new HttpOptions();
-        }
-        if (!method.equals("GET")) {
-            if (payload instanceof FormData) {
-                actualHeaders.put("Content-Type", CONTENT_TYPE_FORM);
-            } else if (!actualHeaders.containsKey("Content-Type") ||
-                    !actualHeaders.containsKey("content-type")) {
-                actualHeaders.put("Content-Type", CONTENT_TYPE_JSON);
+
+            @Override
+            public HttpResponse run(HttpBase http) throws HttpError {
+                return http.request(method, url, payload, headers, options, httpProxy);
             }
+        }).execute();
+    }
+
+    private HttpBase newHttpBase(EventListener eventListener) {
+        HttpBase http = new HttpBase(mJsonCodec);
+        http.setTransport(mTransport);
+        http.setEventListener(eventListener);
+        if (mOnFileUploadProgressListener != null) {
+            final AtomicReference<HttpFileUploadProgress> pendingProgress = new AtomicReference<>();
+            http.setUploadProgressListener(new OnFileUploadProgressListener() {
+                @Override
+                public void onFileUploadProgress(HttpFileUploadProgress progress) {
+                    emitOnFileUploadProgress(pendingProgress, progress);
+                }
+            }, mFileUploadProgressInterval, mFileUploadProgressMinBytes,
+                    mFileUploadProgressMinPercent);
+        }
+        return http;
+    }
+
+    private static boolean sleep(long millis) {
+        if (millis < 0) {
+            return false;
         }
         try {
-            emitOnResponse(http.request(method, url, payload, actualHeaders, actualOptions, httpProxy));
-        } catch (HttpError error) {
-            emitOnError(error);
-        } catch (Exception e) {
-            emitOnError(new HttpError(HttpError.UNKNOWN, HttpError.STAGE_UNKNOWN, e));
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static boolean isCacheable(String method, HttpOptions options) {
+        return method.equals("GET") && (options == null || !options.isStream());
+    }
+
+    private void request(String method, String rawURL, Object payload, HttpHeaders headers,
+                         HttpOptions options, HttpProxy httpProxy) {
+        submit(method, rawURL, payload, headers, options, httpProxy, null, false);
+    }
+
+    /**
+     * Starts a request whose result only goes to the returned future, instead of the listeners
+     * set on this instance.
+     */
+    public HttpFuture requestAsync(String method, String url, Object payload, HttpHeaders headers,
+                                   HttpOptions options) {
+        HttpFuture future = new HttpFuture(this);
+        submit(method, url, payload, headers, options, null, future, false);
+        return future;
+    }
+
+    public HttpFuture getAsync(String url) {
+        return requestAsync("GET", url, null, null, null);
+    }
+
+    public HttpFuture getAsync(String url, HttpHeaders headers, HttpOptions options) {
+        return requestAsync("GET", url, null, headers, options);
+    }
+
+    public HttpFuture postAsync(String url, Object payload) {
+        return requestAsync("POST", url, payload, null, null);
+    }
+
+    public HttpFuture postAsync(String url, Object payload, HttpHeaders headers,
+                                HttpOptions options) {
+        return requestAsync("POST", url, payload, headers, options);
+    }
+
+    /**
+     * Makes the request on the calling thread and returns its response, the listeners set on
+     * this instance are not called. Must not be called on the main thread.
+     */
+    public HttpResponse execute(String method, String url, Object payload, HttpHeaders headers,
+                                HttpOptions options) throws HttpError {
+        HttpFuture future = new HttpFuture(this);
+        submit(method, url, payload, headers, options, null, future, true);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HttpError(HttpError.UNKNOWN, HttpError.STAGE_UNKNOWN, e);
+        } catch (ExecutionException e) {
+            throw (HttpError) e.getCause();
         }
     }
 
-    private void request(final String method, final String rawURL, final Object payload,
-                         final HttpHeaders headers, final HttpOptions options, final HttpProxy httpProxy) {
-        mThread.submit(new Runnable() {
+    // Without a future the result goes to the instance listeners. When blocking, the request
+    // runs right on the calling thread, bypassing the dispatcher.
+    private void submit(final String method, final String rawURL, final Object payload,
+                        final HttpHeaders headers, final HttpOptions options,
+                        final HttpProxy httpProxy, HttpFuture future, boolean blocking) {
+        final String url = resolveURL(rawURL);
+        EventListener.Factory eventListenerFactory = mEventListenerFactory;
+        final EventListener eventListener;
+        if (eventListenerFactory != null) {
+            eventListener = eventListenerFactory.create(method, url);
+            eventListener.callStart(System.nanoTime());
+        } else {
+            eventListener = null;
+        }
+        Callback callback;
+        if (future != null) {
+            callback = newFutureCallback(future, eventListener);
+        } else if (eventListener != null) {
+            callback = newListenerCallback(eventListener);
+        } else {
+            callback = mListenerCallback;
+        }
+        HttpMemoryCache memoryCache = mMemoryCache;
+        if (memoryCache != null && isCacheable(method, options)) {
+            HttpResponse cached = memoryCache.get(method, url, headers);
+            if (cached != null) {
+                callback.onResponse(cached);
+                return;
+            }
+        }
+        if (mSingleFlight && isCacheable(method, options)) {
+            callback = SingleFlight.getInstance().join(mJsonCodec,
+                    SingleFlight.getKey(method, url, headers, options, httpProxy), callback);
+            if (callback == null) {
+                return;
+            }
+        }
+        final String host = getHost(url);
+        final CircuitBreaker circuitBreaker = mCircuitBreaker;
+        if (circuitBreaker != null && !circuitBreaker.allowRequest(host)) {
+            callback.onError(newCircuitOpenError(host));
+            return;
+        }
+        final Call call = new Call(method, url, payload, headers, options, httpProxy, callback,
+                host, circuitBreaker, eventListener, blocking);
+        Runnable task = new Runnable() {
             @Override
             public void run() {
-                actuallyRequest(method, rawURL, payload, headers, options, httpProxy);
+                if (eventListener != null) {
+                    eventListener.dispatchStart(System.nanoTime());
+                }
+                actuallyRequest(call);
+            }
+        };
+        if (blocking) {
+            task.run();
+            return;
+        }
+        enqueue(call, task);
+    }
+
+    // A rejection fails the request either way, whether the dispatcher refused it right away or
+    // its executor did once it was due to run.
+    private static void enqueue(final Call call, Runnable task) {
+        Dispatcher.RejectionListener rejectionListener = new Dispatcher.RejectionListener() {
+            @Override
+            public void onRejected(RejectedExecutionException e) {
+                fail(call, new HttpError(HttpError.REQUEST_REJECTED, HttpError.STAGE_QUEUEING, e));
             }
-        });
+        };
+        try {
+            call.dispatcher.enqueue(call.host, task, rejectionListener);
+        } catch (RejectedExecutionException e) {
+            rejectionListener.onRejected(e);
+        }
     }
 
     public void get(String url) {
@@ -390,36 +895,129 @@ public class HttpRequest {
         request("DELETE", url, payload, headers, options, httpProxy);
     }
 
-    private void emitOnResponse(final HttpResponse response) {
+    private void emitOnResponse(final HttpResponse response, final EventListener eventListener) {
         if (mOnResponseListener != null) {
-            mHandler.post(new Runnable() {
+            getCallbackExecutor().execute(new Runnable() {
                 @Override
                 public void run() {
                     mOnResponseListener.onResponse(response);
+                    if (eventListener != null) {
+                        eventListener.callbackDelivered(System.nanoTime());
+                    }
                 }
             });
         }
     }
 
-    private void emitOnFileUploadProgress(final HttpFileUploadProgress progress) {
-        if (mOnFileUploadProgressListener != null) {
-            mHandler.post(new Runnable() {
+    // The body is read from the connection, so it has to be consumed off the main thread.
+    private void deliverStreamingResponse(HttpResponse response, EventListener eventListener) {
+        if (mOnResponseListener == null) {
+            closeQuietly(response.body);
+            return;
+        }
+        try {
+            mOnResponseListener.onResponse(response);
+        } catch (RuntimeException e) {
+            closeQuietly(response.body);
+            throw e;
+        }
+        if (eventListener != null) {
+            eventListener.callbackDelivered(System.nanoTime());
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    // Only one delivery is ever queued, it picks up whatever snapshot is the latest by then.
+    private void emitOnFileUploadProgress(final AtomicReference<HttpFileUploadProgress> pending,
+                                          HttpFileUploadProgress progress) {
+        if (pending.getAndSet(progress) == null) {
+            getCallbackExecutor().execute(new Runnable() {
                 @Override
                 public void run() {
-                    mOnFileUploadProgressListener.onFileUploadProgress(progress);
+                    HttpFileUploadProgress latest = pending.getAndSet(null);
+                    if (latest != null && mOnFileUploadProgressListener != null) {
+                        mOnFileUploadProgressListener.onFileUploadProgress(latest);
+                    }
                 }
             });
         }
     }
 
-    private void emitOnError(final HttpError error) {
+    private void emitOnError(final HttpError error, final EventListener eventListener) {
         if (mOnErrorListener != null) {
-            mHandler.post(new Runnable() {
+            getCallbackExecutor().execute(new Runnable() {
                 @Override
                 public void run() {
                     mOnErrorListener.onError(error);
+                    if (eventListener != null) {
+                        eventListener.callbackDelivered(System.nanoTime());
+                    }
                 }
             });
         }
     }
+
+    // One request across all of its attempts. Retries run it again from the dispatcher.
+    private final class Call implements Runnable {
+        final String method;
+        final String url;
+        final Object payload;
+        final HttpHeaders headers;
+        final HttpOptions options;
+        final HttpProxy httpProxy;
+        final Callback callback;
+        final String host;
+        final CircuitBreaker circuitBreaker;
+        final EventListener eventListener;
+        final boolean blocking;
+        final Dispatcher dispatcher = mDispatcher;
+        final RetryPolicy retryPolicy = mRetryPolicy;
+        int attempt = 1;
+        HttpCache.Entry cached;
+        // Served fresh from the disk cache, so the response says nothing about the host.
+        boolean fromCache;
+        // The headers actually sent, with the cache conditions; null until the cache was checked.
+        HttpHeaders networkHeaders;
+
+        Call(String method, String url, Object payload, HttpHeaders headers, HttpOptions options,
+             HttpProxy httpProxy, Callback callback, String host, CircuitBreaker circuitBreaker,
+             EventListener eventListener, boolean blocking) {
+            if (headers == null) {
+                headers = new HttpHeaders();
+            }
+            if (options == null) {
+                options = new HttpOptions();
+            }
+            if (!method.equals("GET")) {
+                if (payload instanceof FormData) {
+                    headers.put("Content-Type", CONTENT_TYPE_FORM);
+                } else if (!headers.containsKey("Content-Type") ||
+                        !headers.containsKey("content-type")) {
+                    headers.put("Content-Type", CONTENT_TYPE_JSON);
+                }
+            }
+            this.method = method;
+            this.url = url;
+            this.payload = payload;
+            this.headers = headers;
+            this.options = options;
+            this.httpProxy = httpProxy;
+            this.callback = callback;
+            this.host = host;
+            this.circuitBreaker = circuitBreaker;
+            this.eventListener = eventListener;
+            this.blocking = blocking;
+        }
+
+        @Override
+        public void run() {
+            actuallyRequest(this);
+        }
+    }
 }
@@ -21,14 +21,15 @@ package pk.codebase.requests;
 import android.util.Log;
 
 import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.JavaType;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class HttpResponse {
 
@@ -70,60 +71,167 @@ public class HttpResponse {
     public static final int HTTP_VERSION = 505;
 
     private static final String TAG = HttpResponse.class.getName();
+    private static final Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
 
     public final int code;
     public final String reason;
-    public final String text;
+    public final HttpHeaders headers;
+    public final byte[] content;
     public final String url;
+    public final HttpResponseBody body;
 
-    HttpResponse(int code, String reason, String text, String url) {
+    private final JsonCodec mJsonCodec;
+    private final ConcurrentHashMap<JavaType, Object> mParsedViews = new ConcurrentHashMap<>();
+    private volatile String mText;
+    private volatile JSONObject mJSONObject;
+    private volatile JSONArray mJSONArray;
+    private CountingInputStream mCompressedCounter;
+    private CountingInputStream mUncompressedCounter;
+
+    HttpResponse(int code, String reason, HttpHeaders headers, byte[] content, String url,
+                 JsonCodec jsonCodec) {
         this.code = code;
         this.reason = reason;
-        this.text = text;
+        this.headers = headers;
+        this.content = content;
         this.url = url;
+        this.body = null;
+        mJsonCodec = jsonCodec;
+    }
+
+    HttpResponse(int code, String reason, HttpHeaders headers, HttpResponseBody body, String url,
+                 JsonCodec jsonCodec) {
+        this.code = code;
+        this.reason = reason;
+        this.headers = headers;
+        this.content = null;
+        this.url = url;
+        this.body = body;
+        mJsonCodec = jsonCodec;
+    }
+
+    /**
+     * @return the body decoded with the charset of the Content-Type header, UTF-8 if it has
+     * none, or null for streamed responses. It is decoded on first use only.
+     */
+    public String getText() {
+        String text = mText;
+        if (text == null && content != null) {
+            text = new String(content, getCharset());
+            mText = text;
+        }
+        return text;
+    }
+
+    void setByteCounters(CountingInputStream compressed, CountingInputStream uncompressed) {
+        mCompressedCounter = compressed;
+        mUncompressedCounter = uncompressed;
+    }
+
+    /**
+     * @return the number of body bytes received over the wire, before decompression. For
+     * streamed responses this grows as the body is read.
+     */
+    public long getCompressedSize() {
+        if (mCompressedCounter != null) {
+            return mCompressedCounter.getCount();
+        }
+        return content == null ? 0 : content.length;
+    }
+
+    /**
+     * @return the number of body bytes after decompression, which equals
+     * {@link #getCompressedSize()} when the server sent the body uncompressed.
+     */
+    public long getUncompressedSize() {
+        if (mUncompressedCounter != null) {
+            return mUncompressedCounter.getCount();
+        }
+        return getCompressedSize();
+    }
+
+    Charset getCharset() {
+        String contentType = headers.getHeader("Content-Type");
+        if (contentType != null) {
+            for (String parameter : contentType.split(";")) {
+                String[] pair = parameter.trim().split("=", 2);
+                if (pair.length == 2 && pair[0].trim().equalsIgnoreCase("charset")) {
+                    try {
+                        return Charset.forName(pair[1].trim().replace("\"", ""));
+                    } catch (IllegalArgumentException e) {
+                        Log.d(TAG, e.getMessage(), e);
+                    }
+                }
+            }
+        }
+        return DEFAULT_CHARSET;
     }
 
     public JSONObject toJSONObject() {
-        if (text != null) {
-            try {
-                return new JSONObject(text);
-            } catch (JSONException e) {
-                Log.d(TAG, e.getMessage(), e);
+        JSONObject json = mJSONObject;
+        if (json == null) {
+            synchronized (mParsedViews) {
+                json = mJSONObject;
+                String text = getText();
+                if (json == null && text != null) {
+                    try {
+                        json = new JSONObject(text);
+                        mJSONObject = json;
+                    } catch (JSONException e) {
+                        Log.d(TAG, e.getMessage(), e);
+                    }
+                }
             }
         }
-        return null;
+        return json;
     }
 
     public JSONArray toJSONArray() {
-        if (text != null) {
-            try {
-                return new JSONArray(text);
-            } catch (JSONException e) {
-                Log.d(TAG, e.getMessage(), e);
+        JSONArray json = mJSONArray;
+        if (json == null) {
+            synchronized (mParsedViews) {
+                json = mJSONArray;
+                String text = getText();
+                if (json == null && text != null) {
+                    try {
+                        json = new JSONArray(text);
+                        mJSONArray = json;
+                    } catch (JSONException e) {
+                        Log.d(TAG, e.getMessage(), e);
+                    }
+                }
             }
         }
-        return null;
+        return json;
     }
 
     public <T> T toPOJO(Class<T> expectedType) {
-        if (text != null) {
-            try {
-                return new ObjectMapper().readValue(text, expectedType);
-            } catch (IOException e) {
-                Log.d(TAG, e.getMessage(), e);
-            }
-        }
-        return null;
+        return toPOJO(mJsonCodec.typeOf(expectedType));
     }
 
     public <T> T toPOJO(TypeReference<T> expectedType) {
-        if (text != null) {
-            try {
-                return new ObjectMapper().readValue(text, expectedType);
-            } catch (IOException e) {
-                Log.d(TAG, e.getMessage(), e);
+        return toPOJO(mJsonCodec.typeOf(expectedType));
+    }
+
+    // Parsed once per type straight from the raw bytes, never through getText().
+    @SuppressWarnings("unchecked")
+    private <T> T toPOJO(JavaType expectedType) {
+        Object pojo = mParsedViews.get(expectedType);
+        if (pojo == null && content != null) {
+            synchronized (mParsedViews) {
+                pojo = mParsedViews.get(expectedType);
+                if (pojo == null) {
+                    try {
+                        pojo = mJsonCodec.readerFor(expectedType).readValue(content);
+                        if (pojo != null) {
+                            mParsedViews.put(expectedType, pojo);
+                        }
+                    } catch (IOException e) {
+                        Log.d(TAG, e.getMessage(), e);
+                    }
+                }
             }
         }
-        return null;
+        return (T) pojo;
     }
 }
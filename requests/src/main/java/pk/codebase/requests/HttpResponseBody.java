@@ -0,0 +1,74 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pk.codebase.requests;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A response body that is read lazily from the connection. It holds on to the connection until
+ * closed, so it must always be closed once the caller is done with it.
+ */
+public class HttpResponseBody implements Closeable {
+
+    private final InputStream mInputStream;
+    private final long mContentLength;
+    private final Closeable mConnection;
+    private ReadableByteChannel mChannel;
+    private boolean mClosed;
+
+    HttpResponseBody(InputStream inputStream, long contentLength, Closeable connection) {
+        mInputStream = inputStream;
+        mContentLength = contentLength;
+        mConnection = connection;
+    }
+
+    /**
+     * @return the length of the body in bytes, or -1 if the server did not send one.
+     */
+    public long getContentLength() {
+        return mContentLength;
+    }
+
+    public InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    public synchronized ReadableByteChannel getChannel() {
+        if (mChannel == null) {
+            mChannel = Channels.newChannel(mInputStream);
+        }
+        return mChannel;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Closing may drain the rest of the body, so it must not happen while holding the lock.
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+        }
+        mConnection.close();
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pk.codebase.requests;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Wraps an ObjectMapper and caches the readers and writers it creates, so the (de)serializers
+ * for a type are looked up once instead of on every request.
+ */
+class JsonCodec {
+
+    private static JsonCodec sDefault;
+
+    private final ObjectMapper mMapper;
+    private final ConcurrentHashMap<JavaType, ObjectReader> mReaders = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Class<?>, ObjectWriter> mWriters = new ConcurrentHashMap<>();
+
+    JsonCodec(ObjectMapper mapper) {
+        mMapper = mapper;
+    }
+
+    static synchronized JsonCodec getDefault() {
+        if (sDefault == null) {
+            sDefault = new JsonCodec(new ObjectMapper());
+        }
+        return sDefault;
+    }
+
+    ObjectMapper getMapper() {
+        return mMapper;
+    }
+
+    JavaType typeOf(Class<?> type) {
+        return mMapper.getTypeFactory().constructType(type);
+    }
+
+    JavaType typeOf(TypeReference<?> type) {
+        return mMapper.getTypeFactory().constructType(type);
+    }
+
+    ObjectReader readerFor(JavaType type) {
+        ObjectReader reader = mReaders.get(type);
+        if (reader == null) {
+            reader = mMapper.readerFor(type);
+            ObjectReader existing = mReaders.putIfAbsent(type, reader);
+            if (existing != null) {
+                reader = existing;
+            }
+        }
+        return reader;
+    }
+
+    ObjectWriter writerFor(Class<?> type) {
+        ObjectWriter writer = mWriters.get(type);
+        if (writer == null) {
+            writer = mMapper.writerFor(type);
+            ObjectWriter existing = mWriters.putIfAbsent(type, writer);
+            if (existing != null) {
+                writer = existing;
+            }
+        }
+        return writer;
+    }
+}
@@ -0,0 +1,721 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2016-2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pk.codebase.requests;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLSession;
+
+import static javax.net.ssl.SSLEngineResult.HandshakeStatus.FINISHED;
+import static javax.net.ssl.SSLEngineResult.HandshakeStatus.NEED_TASK;
+import static javax.net.ssl.SSLEngineResult.HandshakeStatus.NEED_WRAP;
+import static javax.net.ssl.SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING;
+
+/**
+ * A non-blocking socket, optionally wrapped in TLS, that is driven by an {@link NioEventLoop}.
+ *
+ * Callers hand it buffers to write and receive everything read through a {@link Listener} on
+ * the loop thread. Writers are limited to a few buffers in flight, so a slow peer holds them
+ * back instead of letting the queue grow.
+ */
+class NioConnection implements NioEventLoop.Handler {
+
+    interface Listener {
+        /**
+         * Called on the loop thread, the data has to be consumed before returning.
+         */
+        void onData(ByteBuffer data) throws IOException;
+
+        /**
+         * @param cause null if the peer closed the connection.
+         */
+        void onClosed(IOException cause);
+    }
+
+    static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_WRITE_BUFFERS = 4;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    final String host;
+    final int port;
+    private final NioEventLoop mLoop;
+    private final SSLEngine mEngine;
+    private volatile Listener mListener;
+    private long mIdleSince;
+
+    // Only touched on the loop thread.
+    private SocketChannel mChannel;
+    private InetSocketAddress[] mAddresses;
+    private int mNextAddress;
+    private SelectionKey mKey;
+    private ByteBuffer mNetIn;
+    private ByteBuffer mNetOut;
+    private ByteBuffer mAppIn;
+    private boolean mHandshaking;
+    private boolean mReadPaused;
+    private boolean mClosed;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mChanged = mLock.newCondition();
+    private final ArrayDeque<ByteBuffer> mWriteQueue = new ArrayDeque<>();
+    private final ArrayDeque<ByteBuffer> mFreeBuffers = new ArrayDeque<>();
+    private int mAllocatedBuffers;
+    private boolean mFlushScheduled;
+    private boolean mConnected;
+    private long mConnectedTime;
+    private IOException mFailure;
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            mLock.lock();
+            try {
+                mFlushScheduled = false;
+            } finally {
+                mLock.unlock();
+            }
+            processSafely();
+        }
+    };
+
+    /**
+     * @param engine a client mode engine for TLS, null for a plain connection.
+     */
+    NioConnection(NioEventLoop loop, String host, int port, SSLEngine engine) throws IOException {
+        this.host = host;
+        this.port = port;
+        mLoop = loop;
+        mEngine = engine;
+        mChannel = SocketChannel.open();
+    }
+
+    /**
+     * Sets who receives the data read. Nothing is read while there is no listener, so a new
+     * connection can be handed to whichever protocol its handshake settled on.
+     */
+    void setListener(Listener listener) {
+        mListener = listener;
+        if (listener != null && !mLoop.inEventLoop()) {
+            mLoop.execute(this, new Runnable() {
+                @Override
+                public void run() {
+                    processSafely();
+                }
+            });
+        }
+    }
+
+    boolean isSecure() {
+        return mEngine != null;
+    }
+
+    SSLEngine getSslEngine() {
+        return mEngine;
+    }
+
+    long getIdleSince() {
+        return mIdleSince;
+    }
+
+    void setIdleSince(long idleSince) {
+        mIdleSince = idleSince;
+    }
+
+    /**
+     * The {@link System#nanoTime()} at which the TCP connection was established.
+     */
+    long getConnectedTime() {
+        mLock.lock();
+        try {
+            return mConnectedTime;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    boolean isOpen() {
+        mLock.lock();
+        try {
+            return mFailure == null;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until connected and, for TLS, until the handshake completed.
+     *
+     * @param addresses tried in turn until one accepts, all within the timeout.
+     */
+    void connect(final InetSocketAddress[] addresses, int timeoutMillis) throws IOException {
+        mLoop.execute(this, new Runnable() {
+            @Override
+            public void run() {
+                mAddresses = addresses;
+                try {
+                    connectNext(null);
+                } catch (IOException e) {
+                    onFailure(e);
+                }
+            }
+        });
+        long deadline = deadline(timeoutMillis);
+        mLock.lock();
+        try {
+            while (!mConnected) {
+                checkFailure();
+                await(mChanged, deadline, "connect timed out");
+            }
+        } catch (InterruptedIOException e) {
+            close(e);
+            throw e;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns an empty direct buffer of {@link #BUFFER_SIZE} bytes to fill and pass to
+     * {@link #write(ByteBuffer)}, waiting while too many are still being written.
+     */
+    ByteBuffer acquireBuffer(int timeoutMillis) throws IOException {
+        long deadline = deadline(timeoutMillis);
+        mLock.lock();
+        try {
+            while (true) {
+                checkFailure();
+                ByteBuffer buffer = mFreeBuffers.poll();
+                if (buffer != null) {
+                    return buffer;
+                }
+                if (mAllocatedBuffers < MAX_WRITE_BUFFERS) {
+                    mAllocatedBuffers += 1;
+                    return ByteBuffer.allocateDirect(BUFFER_SIZE);
+                }
+                await(mChanged, deadline, "Write timed out");
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Hands back a buffer from {@link #acquireBuffer(int)} that is not going to be written.
+     */
+    void recycle(ByteBuffer buffer) {
+        mLock.lock();
+        try {
+            buffer.clear();
+            mFreeBuffers.add(buffer);
+            mChanged.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Queues the readable bytes of the buffer for writing. Buffers from
+     * {@link #acquireBuffer(int)} are recycled once written, other buffers must be heap buffers.
+     */
+    void write(ByteBuffer buffer) throws IOException {
+        boolean schedule;
+        mLock.lock();
+        try {
+            checkFailure();
+            mWriteQueue.add(buffer);
+            schedule = !mFlushScheduled;
+            mFlushScheduled = true;
+        } finally {
+            mLock.unlock();
+        }
+        if (schedule) {
+            mLoop.execute(this, mFlushTask);
+        }
+    }
+
+    /**
+     * Stops reading from the socket while the reader is behind, which makes the peer's
+     * writes block in turn.
+     */
+    void setReadPaused(final boolean paused) {
+        if (mLoop.inEventLoop()) {
+            // Picked up by process() once the current callback returns.
+            mReadPaused = paused;
+            return;
+        }
+        mLoop.execute(this, new Runnable() {
+            @Override
+            public void run() {
+                mReadPaused = paused;
+                processSafely();
+            }
+        });
+    }
+
+    /**
+     * Closes the connection from any thread, waking up everyone waiting on it.
+     */
+    void close(final IOException cause) {
+        setFailure(cause);
+        if (mLoop.inEventLoop()) {
+            closeInternal(cause);
+        } else {
+            mLoop.execute(this, new Runnable() {
+                @Override
+                public void run() {
+                    closeInternal(cause);
+                }
+            });
+        }
+    }
+
+    // Dials the next address on a fresh channel after a failed one, like HttpURLConnection
+    // does, and throws the last failure once no address is left.
+    private void connectNext(IOException failure) throws IOException {
+        while (!mClosed && mNextAddress < mAddresses.length) {
+            InetSocketAddress address = mAddresses[mNextAddress++];
+            try {
+                if (failure != null) {
+                    mChannel.close();
+                    mChannel = SocketChannel.open();
+                }
+                mChannel.configureBlocking(false);
+                mChannel.socket().setTcpNoDelay(true);
+                mKey = mLoop.register(mChannel, 0, this);
+                if (mChannel.connect(address)) {
+                    onConnected();
+                } else {
+                    mKey.interestOps(SelectionKey.OP_CONNECT);
+                }
+                return;
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public void onReady(SelectionKey key) throws IOException {
+        if (key.isConnectable()) {
+            boolean connected;
+            try {
+                connected = mChannel.finishConnect();
+            } catch (IOException e) {
+                connectNext(e);
+                return;
+            }
+            if (connected) {
+                onConnected();
+            }
+            return;
+        }
+        process();
+    }
+
+    @Override
+    public void onFailure(IOException e) {
+        closeInternal(e);
+    }
+
+    private void onConnected() throws IOException {
+        mKey.interestOps(SelectionKey.OP_READ);
+        mLock.lock();
+        try {
+            mConnectedTime = System.nanoTime();
+        } finally {
+            mLock.unlock();
+        }
+        if (mEngine == null) {
+            mNetIn = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            setConnected();
+            return;
+        }
+        SSLSession session = mEngine.getSession();
+        mNetIn = ByteBuffer.allocateDirect(session.getPacketBufferSize());
+        mNetOut = ByteBuffer.allocateDirect(session.getPacketBufferSize());
+        mNetOut.flip();
+        mAppIn = ByteBuffer.allocateDirect(session.getApplicationBufferSize());
+        mEngine.beginHandshake();
+        mHandshaking = true;
+        process();
+    }
+
+    private void setConnected() {
+        mLock.lock();
+        try {
+            mConnected = true;
+            mChanged.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void processSafely() {
+        try {
+            process();
+        } catch (IOException e) {
+            onFailure(e);
+        } catch (RuntimeException e) {
+            onFailure(new IOException(e));
+        }
+    }
+
+    // Writes and reads until neither makes progress, then waits for the selector.
+    private void process() throws IOException {
+        if (mClosed || mKey == null || mNetIn == null) {
+            return;
+        }
+        boolean progress;
+        do {
+            progress = mEngine == null ? flushPlain() : flushSecure();
+            if (mClosed) {
+                return;
+            }
+            progress |= mEngine == null ? readPlain() : readSecure();
+            if (mClosed) {
+                return;
+            }
+        } while (progress);
+        int ops = 0;
+        if (canRead()) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (mEngine == null ? peekWrite() != null : mNetOut.hasRemaining()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        mKey.interestOps(ops);
+    }
+
+    private boolean flushPlain() throws IOException {
+        boolean progress = false;
+        ByteBuffer buffer;
+        while ((buffer = peekWrite()) != null) {
+            if (mChannel.write(buffer) > 0) {
+                progress = true;
+            }
+            if (buffer.hasRemaining()) {
+                break;
+            }
+            written(buffer);
+        }
+        return progress;
+    }
+
+    private boolean canRead() {
+        return mHandshaking || (!mReadPaused && mListener != null);
+    }
+
+    private boolean readPlain() throws IOException {
+        if (!canRead()) {
+            return false;
+        }
+        int bytesRead = mChannel.read(mNetIn);
+        if (bytesRead < 0) {
+            closeInternal(null);
+            return false;
+        }
+        if (bytesRead == 0) {
+            return false;
+        }
+        mNetIn.flip();
+        deliver(mNetIn);
+        mNetIn.clear();
+        return true;
+    }
+
+    // mNetOut is kept flipped for reading in between.
+    private boolean flushSecure() throws IOException {
+        boolean progress = false;
+        while (true) {
+            if (mNetOut.hasRemaining()) {
+                if (mChannel.write(mNetOut) > 0) {
+                    progress = true;
+                }
+                if (mNetOut.hasRemaining()) {
+                    return progress;
+                }
+            }
+            SSLEngineResult.HandshakeStatus status = mEngine.getHandshakeStatus();
+            if (status == NEED_TASK) {
+                runDelegatedTasks();
+                progress = true;
+                continue;
+            }
+            ByteBuffer source;
+            if (status == NEED_WRAP) {
+                source = EMPTY;
+            } else if (mHandshaking) {
+                // Waiting for the peer's part of the handshake.
+                return progress;
+            } else if ((source = peekWrite()) == null) {
+                return progress;
+            }
+            mNetOut.clear();
+            SSLEngineResult result;
+            try {
+                result = mEngine.wrap(source, mNetOut);
+            } finally {
+                mNetOut.flip();
+            }
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    // The session asks for larger records now that the handshake is done.
+                    mNetOut = ByteBuffer.allocateDirect(mEngine.getSession().getPacketBufferSize());
+                    mNetOut.flip();
+                    continue;
+                case CLOSED:
+                    throw new SocketException("Connection closed");
+                default:
+                    break;
+            }
+            checkHandshake(result);
+            if (source != EMPTY && !source.hasRemaining()) {
+                written(source);
+            }
+            if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                return progress;
+            }
+            progress = true;
+        }
+    }
+
+    // mNetIn is kept ready for the next read in between.
+    private boolean readSecure() throws IOException {
+        boolean progress = false;
+        // Left over from a handshake that completed before there was a listener.
+        deliverApplicationData();
+        if (canRead()) {
+            int bytesRead = mChannel.read(mNetIn);
+            if (bytesRead < 0) {
+                onEndOfInput();
+                return false;
+            }
+            progress = bytesRead > 0;
+        }
+        boolean closed = false;
+        mNetIn.flip();
+        try {
+            while (mNetIn.hasRemaining()) {
+                SSLEngineResult.HandshakeStatus status = mEngine.getHandshakeStatus();
+                if (status == NEED_TASK) {
+                    runDelegatedTasks();
+                    progress = true;
+                    continue;
+                }
+                if (status == NEED_WRAP) {
+                    // Our turn to write, flushSecure() runs next and we come back here.
+                    progress = true;
+                    break;
+                }
+                if (!mHandshaking && mListener == null) {
+                    break;
+                }
+                SSLEngineResult result = mEngine.unwrap(mNetIn, mAppIn);
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                    break;
+                }
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    if (mAppIn.position() == 0) {
+                        mAppIn = ByteBuffer.allocateDirect(
+                                mEngine.getSession().getApplicationBufferSize());
+                    } else {
+                        deliverApplicationData();
+                    }
+                    continue;
+                }
+                checkHandshake(result);
+                deliverApplicationData();
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    closed = true;
+                    break;
+                }
+                if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                    break;
+                }
+                progress = true;
+            }
+        } finally {
+            mNetIn.compact();
+        }
+        if (closed) {
+            closeInternal(null);
+            return false;
+        }
+        if (!mNetIn.hasRemaining()) {
+            // A record larger than the buffer, the session grew its packet size.
+            ByteBuffer netIn = ByteBuffer.allocateDirect(mNetIn.capacity() * 2);
+            mNetIn.flip();
+            netIn.put(mNetIn);
+            mNetIn = netIn;
+        }
+        return progress;
+    }
+
+    private void onEndOfInput() {
+        if (mHandshaking) {
+            closeInternal(new SocketException("Connection closed during handshake"));
+            return;
+        }
+        try {
+            mEngine.closeInbound();
+        } catch (IOException ignore) {
+            // Many servers close without a close_notify, HTTP framing tells truncation apart.
+        }
+        closeInternal(null);
+    }
+
+    private void checkHandshake(SSLEngineResult result) {
+        if (mHandshaking && (result.getHandshakeStatus() == FINISHED
+                || mEngine.getHandshakeStatus() == NOT_HANDSHAKING)) {
+            mHandshaking = false;
+            setConnected();
+        }
+    }
+
+    // Certificate checks run here on the loop thread, they take a few milliseconds at most.
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = mEngine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private void deliverApplicationData() throws IOException {
+        if (mAppIn.position() > 0 && mListener != null) {
+            mAppIn.flip();
+            deliver(mAppIn);
+            mAppIn.clear();
+        }
+    }
+
+    private void deliver(ByteBuffer data) throws IOException {
+        Listener listener = mListener;
+        if (listener == null) {
+            throw new IOException("Unexpected data on idle connection");
+        }
+        listener.onData(data);
+    }
+
+    private ByteBuffer peekWrite() {
+        mLock.lock();
+        try {
+            return mWriteQueue.peek();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void written(ByteBuffer buffer) {
+        mLock.lock();
+        try {
+            mWriteQueue.poll();
+            if (buffer.isDirect()) {
+                buffer.clear();
+                mFreeBuffers.add(buffer);
+                mChanged.signalAll();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void setFailure(IOException cause) {
+        mLock.lock();
+        try {
+            if (mFailure == null) {
+                mFailure = cause != null ? cause : new SocketException("Connection closed");
+            }
+            mChanged.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void closeInternal(IOException cause) {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        setFailure(cause);
+        if (mKey != null) {
+            mKey.cancel();
+        }
+        try {
+            mChannel.close();
+        } catch (IOException ignore) {
+        }
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onClosed(cause);
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (mFailure != null) {
+            throw mFailure;
+        }
+    }
+
+    /**
+     * @return the deadline for a timeout in milliseconds, 0 for no timeout.
+     */
+    static long deadline(int timeoutMillis) {
+        if (timeoutMillis <= 0) {
+            return 0;
+        }
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /**
+     * Waits for the condition to be signalled, throwing once the deadline passed.
+     */
+    static void await(Condition condition, long deadline, String timeoutMessage)
+            throws InterruptedIOException {
+        try {
+            if (deadline == 0) {
+                condition.await();
+                return;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new SocketTimeoutException(timeoutMessage);
+            }
+            condition.awaitNanos(remaining);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        }
+    }
+}
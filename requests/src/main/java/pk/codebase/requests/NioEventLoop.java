@@ -0,0 +1,152 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2016-2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pk.codebase.requests;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A thread that waits on a selector and hands ready channels to their handlers. All socket
+ * I/O of a connection happens here, other threads post tasks with
+ * {@link #execute(Handler, Runnable)}.
+ */
+class NioEventLoop implements Runnable {
+
+    interface Handler {
+        void onReady(SelectionKey key) throws IOException;
+
+        void onFailure(IOException e);
+    }
+
+    private final Selector mSelector;
+    private final ConcurrentLinkedQueue<Task> mTasks = new ConcurrentLinkedQueue<>();
+    private final Thread mThread;
+    private volatile boolean mShutdown;
+
+    NioEventLoop(String name) throws IOException {
+        mSelector = Selector.open();
+        mThread = new Thread(this, name);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == mThread;
+    }
+
+    /**
+     * Runs the task on the loop thread, failing the handler instead of the loop if it throws.
+     */
+    void execute(Handler handler, Runnable task) {
+        mTasks.add(new Task(handler, task));
+        if (!inEventLoop()) {
+            mSelector.wakeup();
+        }
+    }
+
+    /**
+     * Must be called on the loop thread, registering elsewhere blocks while it selects.
+     */
+    SelectionKey register(SelectableChannel channel, int ops, Handler handler)
+            throws ClosedChannelException {
+        return channel.register(mSelector, ops, handler);
+    }
+
+    void shutdown() {
+        mShutdown = true;
+        mSelector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (!mShutdown) {
+            try {
+                // Tasks posted from this thread came without a wakeup, they must not wait for
+                // the next selector event.
+                if (mTasks.isEmpty()) {
+                    mSelector.select();
+                } else {
+                    mSelector.selectNow();
+                }
+            } catch (IOException e) {
+                break;
+            }
+            runTasks();
+            Iterator<SelectionKey> iterator = mSelector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                Handler handler = (Handler) key.attachment();
+                try {
+                    handler.onReady(key);
+                } catch (IOException e) {
+                    fail(handler, e);
+                } catch (RuntimeException e) {
+                    fail(handler, new IOException(e));
+                }
+            }
+        }
+        for (SelectionKey key : mSelector.keys()) {
+            fail((Handler) key.attachment(), new IOException("Transport is shut down"));
+        }
+        runTasks();
+        try {
+            mSelector.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    private void runTasks() {
+        Task task;
+        while ((task = mTasks.poll()) != null) {
+            try {
+                task.runnable.run();
+            } catch (RuntimeException e) {
+                fail(task.handler, new IOException(e));
+            }
+        }
+    }
+
+    // A handler whose failure callback throws as well is closed by then, the loop keeps serving
+    // the other channels rather than dying with it.
+    private static void fail(Handler handler, IOException e) {
+        try {
+            handler.onFailure(e);
+        } catch (RuntimeException ignore) {
+        }
+    }
+
+    private static final class Task {
+        final Handler handler;
+        final Runnable runnable;
+
+        Task(Handler handler, Runnable runnable) {
+            this.handler = handler;
+            this.runnable = runnable;
+        }
+    }
+}
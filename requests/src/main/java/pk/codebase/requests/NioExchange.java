@@ -0,0 +1,781 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2016-2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pk.codebase.requests;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An HTTP/1.1 request on a {@link NioConnection}. The calling thread only fills and drains
+ * buffers and waits for the loop thread, which does the actual socket I/O.
+ *
+ * Where the connection speaks HTTP/2 the request goes out as an {@link Http2Stream} instead,
+ * and the methods below hand over to it.
+ */
+class NioExchange extends Exchange implements NioConnection.Listener,
+        Http1ResponseParser.Callback {
+
+    static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    // Reading from the socket stops while this much of the body is waiting to be read.
+    private static final int HIGH_WATER_MARK = 256 * 1024;
+    private static final int LOW_WATER_MARK = 64 * 1024;
+    // Chunk sizes are written as six zero padded hex digits, so the space can be reserved.
+    private static final int CHUNK_HEADER_LENGTH = 8;
+    // A shared connection can be going away right as a stream is opened on it.
+    private static final int MAX_STREAM_RETRIES = 3;
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(ISO_8859_1);
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(ISO_8859_1);
+    // Connection specific headers, which HTTP/2 does not allow.
+    private static final HashSet<String> HTTP2_SKIPPED_HEADERS = new HashSet<>(Arrays.asList(
+            "connection", "host", "keep-alive", "proxy-connection", "te", "transfer-encoding",
+            "upgrade"));
+
+    private final NioTransport mTransport;
+    private final URL mUrl;
+    private final String mHost;
+    private final int mPort;
+    private final boolean mSecure;
+    private final LinkedHashMap<String, String> mRequestProperties = new LinkedHashMap<>();
+    private String mMethod = "GET";
+    private int mConnectTimeout;
+    private int mReadTimeout;
+    private boolean mDoOutput;
+    private boolean mChunked;
+    private long mFixedLength = -1;
+    private EventListener mEventListener;
+    private volatile NioConnection mConnection;
+    private volatile Http2Stream mStream;
+    private volatile boolean mDisconnected;
+    private boolean mReused;
+    private int mStreamRetries;
+    private BodyOutputStream mOutputStream;
+    private boolean mRequestSent;
+    private BodyInputStream mInputStream;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mChanged = mLock.newCondition();
+    private Http1ResponseParser mParser;
+    private boolean mHeadReceived;
+    private int mCode;
+    private String mMessage;
+    private Map<String, List<String>> mHeaders;
+    private final ArrayDeque<byte[]> mBody = new ArrayDeque<>();
+    private int mBodyOffset;
+    private long mQueuedBytes;
+    private boolean mBodyComplete;
+    private boolean mReadPaused;
+    private IOException mFailure;
+    private boolean mReleased;
+
+    NioExchange(NioTransport transport, URL url) {
+        mTransport = transport;
+        mUrl = url;
+        String host = url.getHost();
+        // IPv6 literals come in brackets.
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        mHost = host;
+        mSecure = url.getProtocol().equals("https");
+        mPort = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+    }
+
+    @Override
+    void setRequestMethod(String method) throws ProtocolException {
+        if (method.isEmpty()) {
+            throw new ProtocolException("Invalid HTTP method: " + method);
+        }
+        for (int i = 0; i < method.length(); i++) {
+            char c = method.charAt(i);
+            if (c <= ' ' || c >= 0x7f) {
+                throw new ProtocolException("Invalid HTTP method: " + method);
+            }
+        }
+        mMethod = method;
+    }
+
+    @Override
+    String getRequestMethod() {
+        return mMethod;
+    }
+
+    @Override
+    void setConnectTimeout(int timeout) {
+        mConnectTimeout = timeout;
+    }
+
+    @Override
+    void setReadTimeout(int timeout) {
+        mReadTimeout = timeout;
+    }
+
+    @Override
+    void setRequestProperty(String name, String value) {
+        if (name == null) {
+            throw new NullPointerException("key is null");
+        }
+        checkHeader("field", name);
+        if (value != null) {
+            checkHeader("value", value);
+        }
+        Iterator<String> iterator = mRequestProperties.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().equalsIgnoreCase(name)) {
+                iterator.remove();
+            }
+        }
+        mRequestProperties.put(name, value);
+    }
+
+    // Like HttpURLConnection, refuses line breaks that would let a header end early and smuggle
+    // in others, or another request.
+    private static void checkHeader(String part, String text) {
+        if (text.indexOf('\r') != -1 || text.indexOf('\n') != -1) {
+            throw new IllegalArgumentException("Illegal character(s) in message header " + part
+                    + ": " + text);
+        }
+    }
+
+    @Override
+    void setFixedLengthStreamingMode(long length) {
+        mDoOutput = true;
+        mChunked = false;
+        mFixedLength = length;
+    }
+
+    @Override
+    void setChunkedStreamingMode() {
+        mDoOutput = true;
+        mChunked = true;
+        mFixedLength = -1;
+    }
+
+    @Override
+    void connect(EventListener eventListener) throws IOException {
+        mEventListener = eventListener;
+        while (true) {
+            Http2Connection http2Connection = mTransport.acquireHttp2(mHost, mPort, mSecure,
+                    mConnectTimeout);
+            if (http2Connection != null) {
+                if (openStream(http2Connection)) {
+                    mReused = true;
+                    return;
+                }
+                continue;
+            }
+            NioConnection connection = mTransport.acquire(mHost, mPort, mSecure);
+            if (connection != null) {
+                mReused = true;
+                attach(connection);
+                return;
+            }
+            if (connectNew()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return false if the new connection is HTTP/2 and others already took all its streams.
+     */
+    private boolean connectNew() throws IOException {
+        NioConnection connection = mTransport.newConnection(mHost, mPort, mSecure);
+        // Set before connecting, so that disconnect() can abort the connect.
+        mConnection = connection;
+        if (mDisconnected) {
+            connection.close(new SocketException("Socket closed"));
+        }
+        Http2Connection http2Connection = mTransport.connect(connection, mConnectTimeout,
+                mEventListener);
+        if (http2Connection != null) {
+            return openStream(http2Connection);
+        }
+        attach(connection);
+        return true;
+    }
+
+    private boolean openStream(Http2Connection connection) throws IOException {
+        Http2Stream stream = connection.newStream(buildHttp2Headers(), mDoOutput,
+                mChunked ? -1 : mFixedLength, mReadTimeout);
+        if (stream == null) {
+            return false;
+        }
+        mStream = stream;
+        if (mDisconnected) {
+            stream.cancel();
+        }
+        return true;
+    }
+
+    private void attach(NioConnection connection) {
+        mLock.lock();
+        try {
+            mParser = new Http1ResponseParser(mMethod, this);
+            mFailure = null;
+        } finally {
+            mLock.unlock();
+        }
+        connection.setListener(this);
+        mConnection = connection;
+    }
+
+    @Override
+    OutputStream getOutputStream() throws IOException {
+        if (!mDoOutput) {
+            throw new ProtocolException("Request has no body, set a streaming mode first");
+        }
+        if (mStream != null) {
+            return mStream.getOutputStream();
+        }
+        if (mOutputStream == null) {
+            mOutputStream = new BodyOutputStream();
+        }
+        return mOutputStream;
+    }
+
+    @Override
+    InputStream getResponseBody() throws IOException {
+        awaitResponseHead();
+        if (mStream != null) {
+            return mStream.getResponseBody();
+        }
+        if (mInputStream == null) {
+            mInputStream = new BodyInputStream();
+        }
+        return mInputStream;
+    }
+
+    @Override
+    int getResponseCode() throws IOException {
+        awaitResponseHead();
+        return mCode;
+    }
+
+    @Override
+    String getResponseMessage() throws IOException {
+        awaitResponseHead();
+        return mMessage;
+    }
+
+    @Override
+    Map<String, List<String>> getHeaderFields() {
+        mLock.lock();
+        try {
+            if (mHeaders == null) {
+                return Collections.emptyMap();
+            }
+            return mHeaders;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    void disconnect() {
+        mDisconnected = true;
+        Http2Stream stream = mStream;
+        if (stream != null) {
+            // Only the stream, the connection is shared.
+            stream.cancel();
+            return;
+        }
+        mLock.lock();
+        try {
+            if (mReleased) {
+                // The connection may already carry someone else's request.
+                return;
+            }
+            if (mFailure == null) {
+                mFailure = new SocketException("Socket closed");
+            }
+            mChanged.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+        NioConnection connection = mConnection;
+        if (connection != null) {
+            connection.close(new SocketException("Socket closed"));
+        }
+    }
+
+    private void ensureRequestSent() throws IOException {
+        if (mRequestSent) {
+            return;
+        }
+        if (mOutputStream == null) {
+            mOutputStream = new BodyOutputStream();
+        }
+        mOutputStream.close();
+    }
+
+    private void awaitResponseHead() throws IOException {
+        while (true) {
+            if (mStream != null) {
+                if (awaitStreamResponseHead()) {
+                    return;
+                }
+                continue;
+            }
+            ensureRequestSent();
+            long deadline = NioConnection.deadline(mReadTimeout);
+            IOException failure;
+            InterruptedIOException timeout = null;
+            mLock.lock();
+            try {
+                while (!mHeadReceived && mFailure == null) {
+                    try {
+                        NioConnection.await(mChanged, deadline, "Read timed out");
+                    } catch (InterruptedIOException e) {
+                        // Later calls fail with it at once rather than waiting all over again.
+                        mFailure = e;
+                        timeout = e;
+                    }
+                }
+                if (mHeadReceived) {
+                    return;
+                }
+                failure = mFailure;
+            } finally {
+                mLock.unlock();
+            }
+            if (timeout != null) {
+                // A late response must not be taken for that of the next request.
+                mConnection.close(timeout);
+            }
+            if (!mReused || mDoOutput || mDisconnected || mParser.isStarted()
+                    || failure instanceof InterruptedIOException) {
+                throw failure;
+            }
+            // The server closed the pooled connection before we used it, a new one is safe
+            // as long as there is no body that would have to be sent again.
+            mReused = false;
+            mRequestSent = false;
+            mOutputStream = null;
+            if (!connectNew()) {
+                connect(mEventListener);
+            }
+        }
+    }
+
+    /**
+     * @return false if the request is to be waited for again on a new stream.
+     */
+    private boolean awaitStreamResponseHead() throws IOException {
+        Http2Stream stream = mStream;
+        try {
+            stream.finishRequest(mDoOutput);
+            stream.awaitResponseHead();
+        } catch (IOException e) {
+            // Like above, a request without a body is sent again if the server refused it or
+            // the shared connection broke before anything came back.
+            boolean retry = stream.isRefused()
+                    || (mReused && !(e instanceof InterruptedIOException));
+            if (!retry || mDoOutput || mDisconnected || mStreamRetries >= MAX_STREAM_RETRIES) {
+                throw e;
+            }
+            mStreamRetries += 1;
+            mReused = false;
+            mStream = null;
+            connect(mEventListener);
+            return false;
+        }
+        mLock.lock();
+        try {
+            mCode = stream.getCode();
+            mMessage = "";
+            mHeaders = stream.getHeaders();
+            mHeadReceived = true;
+        } finally {
+            mLock.unlock();
+        }
+        return true;
+    }
+
+    private List<String> buildHttp2Headers() {
+        List<String> fields = new ArrayList<>();
+        String file = mUrl.getFile();
+        String authority = null;
+        for (Map.Entry<String, String> property : mRequestProperties.entrySet()) {
+            if (property.getKey().equalsIgnoreCase("Host")) {
+                authority = property.getValue();
+            }
+        }
+        if (authority == null) {
+            authority = mUrl.getHost();
+            if (mUrl.getPort() != -1 && mUrl.getPort() != mUrl.getDefaultPort()) {
+                authority += ":" + mUrl.getPort();
+            }
+        }
+        fields.add(":method");
+        fields.add(mMethod);
+        fields.add(":scheme");
+        fields.add(mSecure ? "https" : "http");
+        fields.add(":authority");
+        fields.add(authority);
+        fields.add(":path");
+        fields.add(file.isEmpty() ? "/" : file);
+        for (Map.Entry<String, String> property : mRequestProperties.entrySet()) {
+            String name = property.getKey().toLowerCase(Locale.US);
+            if (!HTTP2_SKIPPED_HEADERS.contains(name)) {
+                fields.add(name);
+                fields.add(property.getValue());
+            }
+        }
+        if (mDoOutput && !mChunked) {
+            fields.add("content-length");
+            fields.add(String.valueOf(mFixedLength));
+        }
+        return fields;
+    }
+
+    private byte[] buildHead() {
+        StringBuilder head = new StringBuilder(256);
+        String file = mUrl.getFile();
+        head.append(mMethod).append(' ').append(file.isEmpty() ? "/" : file)
+                .append(" HTTP/1.1\r\n");
+        boolean hasHost = false;
+        for (Map.Entry<String, String> property : mRequestProperties.entrySet()) {
+            hasHost |= property.getKey().equalsIgnoreCase("Host");
+            head.append(property.getKey()).append(": ").append(property.getValue())
+                    .append("\r\n");
+        }
+        if (!hasHost) {
+            head.append("Host: ").append(mUrl.getHost());
+            if (mUrl.getPort() != -1 && mUrl.getPort() != mUrl.getDefaultPort()) {
+                head.append(':').append(mUrl.getPort());
+            }
+            head.append("\r\n");
+        }
+        if (mChunked) {
+            head.append("Transfer-Encoding: chunked\r\n");
+        } else if (mDoOutput) {
+            head.append("Content-Length: ").append(mFixedLength).append("\r\n");
+        }
+        if (!ConnectionPool.getDefault().isReuseEnabled()) {
+            head.append("Connection: close\r\n");
+        }
+        head.append("\r\n");
+        return head.toString().getBytes(ISO_8859_1);
+    }
+
+    @Override
+    public void onData(ByteBuffer data) throws IOException {
+        mParser.parse(data);
+    }
+
+    @Override
+    public void onClosed(IOException cause) {
+        IOException failure = cause;
+        if (failure == null) {
+            try {
+                mParser.onEndOfStream();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        mLock.lock();
+        try {
+            if (failure != null && !mBodyComplete && mFailure == null) {
+                mFailure = failure;
+            }
+            mChanged.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void onResponseHead(int code, String message, Map<String, List<String>> headers) {
+        mLock.lock();
+        try {
+            mCode = code;
+            mMessage = message;
+            mHeaders = headers;
+            mHeadReceived = true;
+            mChanged.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void onBody(ByteBuffer data, boolean last) {
+        byte[] chunk = new byte[data.remaining()];
+        data.get(chunk);
+        mLock.lock();
+        try {
+            mBody.add(chunk);
+            mQueuedBytes += chunk.length;
+            mBodyComplete = last;
+            if (!mReadPaused && mQueuedBytes >= HIGH_WATER_MARK) {
+                mReadPaused = true;
+                mConnection.setReadPaused(true);
+            }
+            mChanged.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void onComplete() {
+        mLock.lock();
+        try {
+            mBodyComplete = true;
+            mChanged.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    // Hands a connection that finished cleanly back to the pool and closes any other.
+    private void release() {
+        boolean reusable;
+        mLock.lock();
+        try {
+            if (mReleased) {
+                return;
+            }
+            mReleased = true;
+            reusable = mBodyComplete && mBody.isEmpty() && mFailure == null && mRequestSent
+                    && mParser.isReusable();
+            mBody.clear();
+        } finally {
+            mLock.unlock();
+        }
+        if (reusable) {
+            mTransport.release(mConnection);
+        } else {
+            mConnection.close(null);
+        }
+    }
+
+    private class BodyInputStream extends InputStream {
+        private boolean mClosed;
+
+        @Override
+        public int read() throws IOException {
+            byte[] buffer = new byte[1];
+            return read(buffer, 0, 1) == -1 ? -1 : buffer[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            long deadline = NioConnection.deadline(mReadTimeout);
+            mLock.lock();
+            try {
+                if (mClosed) {
+                    throw new IOException("Stream closed");
+                }
+                while (mBody.isEmpty()) {
+                    if (mBodyComplete) {
+                        return -1;
+                    }
+                    if (mFailure != null) {
+                        throw mFailure;
+                    }
+                    NioConnection.await(mChanged, deadline, "Read timed out");
+                }
+                byte[] chunk = mBody.peek();
+                int count = Math.min(length, chunk.length - mBodyOffset);
+                System.arraycopy(chunk, mBodyOffset, buffer, offset, count);
+                mBodyOffset += count;
+                if (mBodyOffset == chunk.length) {
+                    mBody.poll();
+                    mBodyOffset = 0;
+                }
+                mQueuedBytes -= count;
+                if (mReadPaused && mQueuedBytes <= LOW_WATER_MARK) {
+                    mReadPaused = false;
+                    mConnection.setReadPaused(false);
+                }
+                return count;
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        @Override
+        public int available() {
+            mLock.lock();
+            try {
+                return (int) Math.min(mQueuedBytes, Integer.MAX_VALUE);
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            mLock.lock();
+            try {
+                mClosed = true;
+            } finally {
+                mLock.unlock();
+            }
+            release();
+        }
+    }
+
+    // Writes the request head and body straight into the connection's direct buffers. For a
+    // chunked body every buffer is one chunk, framed in place once it is full.
+    private class BodyOutputStream extends OutputStream {
+        private ByteBuffer mBuffer;
+        private int mDataStart;
+        private long mWritten;
+        private boolean mClosed;
+
+        BodyOutputStream() throws IOException {
+            byte[] head = buildHead();
+            mBuffer = mConnection.acquireBuffer(mReadTimeout);
+            if (head.length + CHUNK_HEADER_LENGTH + 2 + LAST_CHUNK.length > mBuffer.capacity()) {
+                mConnection.write(ByteBuffer.wrap(head));
+            } else {
+                mBuffer.put(head);
+            }
+            startChunk();
+        }
+
+        private void startChunk() {
+            mDataStart = mBuffer.position() + (mChunked ? CHUNK_HEADER_LENGTH : 0);
+            mBuffer.position(mDataStart);
+        }
+
+        private int getDataLimit() {
+            return mBuffer.capacity() - (mChunked ? 2 : 0);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            if (mClosed) {
+                throw new IOException("Stream closed");
+            }
+            if (mFixedLength >= 0 && mWritten + length > mFixedLength) {
+                throw new IOException(String.format("Expected %d bytes but received %d",
+                        mFixedLength, mWritten + length));
+            }
+            while (length > 0) {
+                int space = getDataLimit() - mBuffer.position();
+                if (space == 0) {
+                    submit();
+                    continue;
+                }
+                int count = Math.min(space, length);
+                mBuffer.put(buffer, offset, count);
+                offset += count;
+                length -= count;
+                mWritten += count;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (!mClosed && mBuffer.position() > mDataStart) {
+                submit();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mClosed) {
+                return;
+            }
+            if (mFixedLength >= 0 && mWritten < mFixedLength) {
+                throw new IOException(String.format("Expected %d bytes but received %d",
+                        mFixedLength, mWritten));
+            }
+            frameChunk();
+            if (mChunked) {
+                if (mBuffer.remaining() < LAST_CHUNK.length) {
+                    send();
+                    mBuffer = mConnection.acquireBuffer(mReadTimeout);
+                }
+                mBuffer.put(LAST_CHUNK);
+            }
+            send();
+            mBuffer = null;
+            mClosed = true;
+            mRequestSent = true;
+        }
+
+        private void submit() throws IOException {
+            frameChunk();
+            send();
+            mBuffer = mConnection.acquireBuffer(mReadTimeout);
+            startChunk();
+        }
+
+        private void frameChunk() {
+            if (!mChunked) {
+                return;
+            }
+            int headerStart = mDataStart - CHUNK_HEADER_LENGTH;
+            int length = mBuffer.position() - mDataStart;
+            if (length == 0) {
+                mBuffer.position(headerStart);
+                return;
+            }
+            for (int i = 5; i >= 0; i--) {
+                mBuffer.put(headerStart + i, HEX_DIGITS[length & 0xf]);
+                length >>>= 4;
+            }
+            mBuffer.put(headerStart + 6, (byte) '\r');
+            mBuffer.put(headerStart + 7, (byte) '\n');
+            mBuffer.put((byte) '\r');
+            mBuffer.put((byte) '\n');
+        }
+
+        private void send() throws IOException {
+            mBuffer.flip();
+            if (mBuffer.hasRemaining()) {
+                mConnection.write(mBuffer);
+            } else {
+                mConnection.recycle(mBuffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,553 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2016-2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pk.codebase.requests;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLParameters;
+
+/**
+ * Sends requests over non-blocking sockets driven by a few event loop threads, instead of a
+ * blocking socket per request.
+ *
+ * Socket I/O and TLS happen on the loop threads only, the thread making a request just waits
+ * for them. Combined with {@link Dispatcher#newVirtualThreadDispatcher(int, int, int)} that
+ * lets thousands of slow requests be in flight on a handful of platform threads. Idle
+ * connections are kept as configured by {@link ConnectionPool}. Requests through a proxy are
+ * sent with the platform's HttpURLConnection.
+ *
+ * HTTPS servers that offer HTTP/2 through ALPN get all concurrent requests multiplexed over a
+ * single connection, see {@link #setHttp2Enabled(boolean)}.
+ */
+public class NioTransport extends Transport {
+
+    private static final int DEFAULT_LOOP_THREADS =
+            Math.min(4, Runtime.getRuntime().availableProcessors());
+    private static final AtomicInteger sLoopCount = new AtomicInteger();
+    private static final String[] HTTP2_PROTOCOLS = {"h2", "http/1.1"};
+    // ALPN is available from API 29 and Java 9 on, and is looked up reflectively.
+    private static final Method sSetApplicationProtocols;
+    private static final Method sGetApplicationProtocol;
+
+    static {
+        Method setApplicationProtocols = null;
+        Method getApplicationProtocol = null;
+        try {
+            setApplicationProtocols = SSLParameters.class.getMethod("setApplicationProtocols",
+                    String[].class);
+            getApplicationProtocol = SSLEngine.class.getMethod("getApplicationProtocol");
+        } catch (NoSuchMethodException ignore) {
+        }
+        sSetApplicationProtocols = setApplicationProtocols;
+        sGetApplicationProtocol = getApplicationProtocol;
+    }
+
+    private final NioEventLoop[] mLoops;
+    private final AtomicInteger mNextLoop = new AtomicInteger();
+    private final Transport mProxyTransport = new UrlConnectionTransport();
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mConnected = mLock.newCondition();
+    private final HashMap<String, ArrayDeque<NioConnection>> mIdleConnections = new HashMap<>();
+    private final HashMap<String, List<Http2Connection>> mHttp2Connections = new HashMap<>();
+    // Hosts a connection is being opened to that may turn out to be HTTP/2.
+    private final HashSet<String> mHttp2Connecting = new HashSet<>();
+    // Hosts that answered ALPN with HTTP/1.1.
+    private final HashSet<String> mHttp1Hosts = new HashSet<>();
+    private SSLContext mSslContext;
+    private boolean mHttp2Enabled = true;
+    private boolean mHttp2PriorKnowledge;
+    private boolean mShutdown;
+
+    public NioTransport() {
+        this(DEFAULT_LOOP_THREADS, null);
+    }
+
+    /**
+     * @param loopThreads the number of threads doing the I/O, a few are plenty.
+     * @param sslContext used for HTTPS connections, null for the platform default.
+     */
+    public NioTransport(int loopThreads, SSLContext sslContext) {
+        if (loopThreads < 1) {
+            throw new IllegalArgumentException("loopThreads < 1");
+        }
+        mSslContext = sslContext;
+        mLoops = new NioEventLoop[loopThreads];
+        try {
+            for (int i = 0; i < loopThreads; i++) {
+                mLoops[i] = new NioEventLoop("Requests NIO #" + sLoopCount.incrementAndGet());
+            }
+        } catch (IOException e) {
+            shutdownLoops();
+            throw new IllegalStateException("Cannot open a selector", e);
+        }
+    }
+
+    /**
+     * Whether to offer HTTP/2 to HTTPS servers, on by default. Needs ALPN, i.e. API 29 or a
+     * JVM of version 9 or later, requests fall back to HTTP/1.1 elsewhere.
+     */
+    public NioTransport setHttp2Enabled(boolean enabled) {
+        mLock.lock();
+        try {
+            mHttp2Enabled = enabled;
+        } finally {
+            mLock.unlock();
+        }
+        return this;
+    }
+
+    /**
+     * Speaks HTTP/2 over plain http:// connections without negotiating it first (h2c), which
+     * only works with servers known to support it, e.g. for local testing. Off by default.
+     */
+    public NioTransport setHttp2PriorKnowledge(boolean priorKnowledge) {
+        mLock.lock();
+        try {
+            mHttp2PriorKnowledge = priorKnowledge;
+        } finally {
+            mLock.unlock();
+        }
+        return this;
+    }
+
+    /**
+     * Closes idle connections and stops the loop threads, requests still in flight fail.
+     */
+    public void shutdown() {
+        List<Http2Connection> http2Connections = new ArrayList<>();
+        mLock.lock();
+        try {
+            mShutdown = true;
+            for (ArrayDeque<NioConnection> connections : mIdleConnections.values()) {
+                for (NioConnection connection : connections) {
+                    connection.close(null);
+                }
+            }
+            mIdleConnections.clear();
+            for (List<Http2Connection> connections : mHttp2Connections.values()) {
+                http2Connections.addAll(connections);
+            }
+            mHttp2Connections.clear();
+        } finally {
+            mLock.unlock();
+        }
+        for (Http2Connection connection : http2Connections) {
+            connection.close();
+        }
+        shutdownLoops();
+    }
+
+    private void shutdownLoops() {
+        for (NioEventLoop loop : mLoops) {
+            if (loop != null) {
+                loop.shutdown();
+            }
+        }
+    }
+
+    @Override
+    Exchange newExchange(URL url, Proxy proxy) throws IOException {
+        if (proxy != null) {
+            return mProxyTransport.newExchange(url, proxy);
+        }
+        String protocol = url.getProtocol();
+        if (!protocol.equals("http") && !protocol.equals("https")) {
+            throw new IOException("Unsupported protocol: " + protocol);
+        }
+        mLock.lock();
+        try {
+            if (mShutdown) {
+                throw new IOException("Transport is shut down");
+            }
+        } finally {
+            mLock.unlock();
+        }
+        return new NioExchange(this, url);
+    }
+
+    /**
+     * Creates a connection to pass to {@link #connect(NioConnection, int, EventListener)}.
+     */
+    NioConnection newConnection(String host, int port, boolean secure) throws IOException {
+        boolean created = false;
+        try {
+            SSLEngine engine = null;
+            if (secure) {
+                engine = getSslContext().createSSLEngine(host, port);
+                engine.setUseClientMode(true);
+                configureSslEngine(engine);
+            }
+            NioEventLoop loop =
+                    mLoops[(mNextLoop.getAndIncrement() & Integer.MAX_VALUE) % mLoops.length];
+            NioConnection connection = new NioConnection(loop, host, port, engine);
+            created = true;
+            return connection;
+        } finally {
+            if (!created) {
+                connectFinished(getKey(host, port, secure));
+            }
+        }
+    }
+
+    /**
+     * Connects and, if the server speaks HTTP/2, makes the connection available for sharing.
+     *
+     * @return the HTTP/2 connection, or null if the connection is to be used for HTTP/1.1.
+     */
+    Http2Connection connect(NioConnection connection, int timeout, EventListener eventListener)
+            throws IOException {
+        String key = getKey(connection.host, connection.port, connection.isSecure());
+        try {
+            if (eventListener != null) {
+                eventListener.dnsStart(connection.host, System.nanoTime());
+            }
+            InetAddress[] addresses = InetAddress.getAllByName(connection.host);
+            if (eventListener != null) {
+                eventListener.dnsEnd(connection.host, addresses, System.nanoTime());
+            }
+            InetSocketAddress[] socketAddresses = new InetSocketAddress[addresses.length];
+            for (int i = 0; i < addresses.length; i++) {
+                socketAddresses[i] = new InetSocketAddress(addresses[i], connection.port);
+            }
+            if (eventListener != null) {
+                eventListener.connectStart(System.nanoTime());
+            }
+            connection.connect(socketAddresses, timeout);
+            long now = System.nanoTime();
+            if (connection.isSecure()) {
+                verifyHostname(connection);
+                if (eventListener != null) {
+                    eventListener.secureConnectStart(connection.getConnectedTime());
+                    eventListener.secureConnectEnd(now);
+                }
+            }
+            if (eventListener != null) {
+                eventListener.connectEnd(now);
+            }
+            return startHttp2(connection, key, timeout);
+        } finally {
+            connectFinished(key);
+        }
+    }
+
+    // Wakes up everyone waiting in acquireHttp2() for this connect.
+    private void connectFinished(String key) {
+        mLock.lock();
+        try {
+            mHttp2Connecting.remove(key);
+            mConnected.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private Http2Connection startHttp2(NioConnection connection, String key, int timeout)
+            throws IOException {
+        boolean http2;
+        mLock.lock();
+        try {
+            if (connection.isSecure()) {
+                http2 = "h2".equals(getApplicationProtocol(connection.getSslEngine()));
+                if (http2) {
+                    mHttp1Hosts.remove(key);
+                } else if (mHttp2Enabled && sSetApplicationProtocols != null) {
+                    mHttp1Hosts.add(key);
+                }
+            } else {
+                http2 = mHttp2Enabled && mHttp2PriorKnowledge;
+            }
+        } finally {
+            mLock.unlock();
+        }
+        if (!http2) {
+            return null;
+        }
+        Http2Connection http2Connection = new Http2Connection(this, connection);
+        http2Connection.start(timeout);
+        mLock.lock();
+        try {
+            if (mShutdown) {
+                connection.close(null);
+                throw new IOException("Transport is shut down");
+            }
+            List<Http2Connection> connections = mHttp2Connections.get(key);
+            if (connections == null) {
+                connections = new ArrayList<>();
+                mHttp2Connections.put(key, connections);
+            }
+            connections.add(http2Connection);
+        } finally {
+            mLock.unlock();
+        }
+        return http2Connection;
+    }
+
+    /**
+     * Returns an HTTP/2 connection to the host with room for another stream, or null if the
+     * caller is to connect. While someone else connects to the same host this waits for them
+     * instead, since their connection can probably be shared.
+     */
+    Http2Connection acquireHttp2(String host, int port, boolean secure, int timeout)
+            throws IOException {
+        String key = getKey(host, port, secure);
+        long deadline = NioConnection.deadline(timeout);
+        long keepAlive = TimeUnit.MILLISECONDS.toNanos(ConnectionPool.getDefault().keepAliveDuration);
+        List<Http2Connection> idle = new ArrayList<>();
+        mLock.lock();
+        try {
+            while (true) {
+                if (!mHttp2Enabled || (secure ? sSetApplicationProtocols == null
+                        || mHttp1Hosts.contains(key) : !mHttp2PriorKnowledge)) {
+                    return null;
+                }
+                List<Http2Connection> connections = mHttp2Connections.get(key);
+                Http2Connection result = null;
+                if (connections != null) {
+                    Iterator<Http2Connection> iterator = connections.iterator();
+                    while (iterator.hasNext()) {
+                        Http2Connection connection = iterator.next();
+                        if (connection.isShutdown()) {
+                            iterator.remove();
+                        } else if (connection.isIdleFor(keepAlive)) {
+                            iterator.remove();
+                            idle.add(connection);
+                        } else if (result == null && connection.hasCapacity()) {
+                            result = connection;
+                        }
+                    }
+                    if (connections.isEmpty()) {
+                        mHttp2Connections.remove(key);
+                    }
+                }
+                if (result != null) {
+                    return result;
+                }
+                if (mHttp2Connecting.add(key)) {
+                    return null;
+                }
+                NioConnection.await(mConnected, deadline, "connect timed out");
+            }
+        } finally {
+            mLock.unlock();
+            for (Http2Connection connection : idle) {
+                connection.close();
+            }
+        }
+    }
+
+    void remove(Http2Connection http2Connection) {
+        NioConnection connection = http2Connection.getConnection();
+        String key = getKey(connection.host, connection.port, connection.isSecure());
+        mLock.lock();
+        try {
+            List<Http2Connection> connections = mHttp2Connections.get(key);
+            if (connections != null && connections.remove(http2Connection)
+                    && connections.isEmpty()) {
+                mHttp2Connections.remove(key);
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return an idle connection to the host, or null if there is none.
+     */
+    NioConnection acquire(String host, int port, boolean secure) {
+        String key = getKey(host, port, secure);
+        mLock.lock();
+        try {
+            ArrayDeque<NioConnection> connections = mIdleConnections.get(key);
+            if (connections == null) {
+                return null;
+            }
+            evictExpired(connections);
+            // The most recently used one is the least likely to have been closed by the server.
+            NioConnection connection = connections.pollLast();
+            if (connections.isEmpty()) {
+                mIdleConnections.remove(key);
+            }
+            if (connection != null && mHttp2Connecting.remove(key)) {
+                // Not connecting after all, the host is back to HTTP/1.1.
+                mConnected.signalAll();
+            }
+            return connection;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    void release(final NioConnection connection) {
+        ConnectionPool pool = ConnectionPool.getDefault();
+        String key = getKey(connection.host, connection.port, connection.isSecure());
+        mLock.lock();
+        try {
+            if (!mShutdown && pool.isReuseEnabled() && connection.isOpen()) {
+                ArrayDeque<NioConnection> connections = mIdleConnections.get(key);
+                if (connections == null) {
+                    connections = new ArrayDeque<>();
+                    mIdleConnections.put(key, connections);
+                }
+                evictExpired(connections);
+                if (connections.size() < pool.maxIdleConnections) {
+                    connection.setIdleSince(System.nanoTime());
+                    connection.setListener(new NioConnection.Listener() {
+                        @Override
+                        public void onData(ByteBuffer data) throws IOException {
+                            throw new IOException("Unexpected data on idle connection");
+                        }
+
+                        @Override
+                        public void onClosed(IOException cause) {
+                            remove(connection);
+                        }
+                    });
+                    connections.addLast(connection);
+                    return;
+                }
+            }
+        } finally {
+            mLock.unlock();
+        }
+        connection.close(null);
+    }
+
+    private void remove(NioConnection connection) {
+        String key = getKey(connection.host, connection.port, connection.isSecure());
+        mLock.lock();
+        try {
+            ArrayDeque<NioConnection> connections = mIdleConnections.get(key);
+            if (connections != null && connections.remove(connection) && connections.isEmpty()) {
+                mIdleConnections.remove(key);
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void evictExpired(ArrayDeque<NioConnection> connections) {
+        long keepAlive = TimeUnit.MILLISECONDS.toNanos(ConnectionPool.getDefault().keepAliveDuration);
+        long now = System.nanoTime();
+        Iterator<NioConnection> iterator = connections.iterator();
+        while (iterator.hasNext()) {
+            NioConnection connection = iterator.next();
+            if (!connection.isOpen() || now - connection.getIdleSince() >= keepAlive) {
+                iterator.remove();
+                connection.close(null);
+            }
+        }
+    }
+
+    private static String getKey(String host, int port, boolean secure) {
+        return (secure ? "https://" : "http://") + host + ":" + port;
+    }
+
+    private SSLContext getSslContext() throws IOException {
+        mLock.lock();
+        try {
+            if (mSslContext == null) {
+                mSslContext = SSLContext.getDefault();
+            }
+            return mSslContext;
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    // Lets the engine check the hostname during the handshake where it can, and offers HTTP/2
+    // where ALPN is available.
+    private void configureSslEngine(SSLEngine engine) {
+        SSLParameters parameters = engine.getSSLParameters();
+        if (hasEndpointIdentification()) {
+            setEndpointIdentificationAlgorithm(parameters);
+        }
+        mLock.lock();
+        try {
+            if (mHttp2Enabled && sSetApplicationProtocols != null) {
+                try {
+                    sSetApplicationProtocols.invoke(parameters, (Object) HTTP2_PROTOCOLS);
+                } catch (Exception ignore) {
+                    // Negotiates nothing, which means HTTP/1.1.
+                }
+            }
+        } finally {
+            mLock.unlock();
+        }
+        engine.setSSLParameters(parameters);
+    }
+
+    private static String getApplicationProtocol(SSLEngine engine) {
+        if (sGetApplicationProtocol == null) {
+            return null;
+        }
+        try {
+            return (String) sGetApplicationProtocol.invoke(engine);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static boolean hasEndpointIdentification() {
+        return !ANDROID || Build.VERSION.SDK_INT >= N;
+    }
+
+    @TargetApi(N)
+    private static void setEndpointIdentificationAlgorithm(SSLParameters parameters) {
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+    }
+
+    private void verifyHostname(NioConnection connection) throws IOException {
+        if (hasEndpointIdentification()) {
+            return;
+        }
+        if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(connection.host,
+                connection.getSslEngine().getSession())) {
+            SSLHandshakeException e = new SSLHandshakeException(
+                    "Hostname " + connection.host + " not verified");
+            connection.close(e);
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2016-2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pk.codebase.requests;
+
+import java.net.Authenticator;
+import java.net.PasswordAuthentication;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Answers credential requests for the proxies requests were made through.
+ *
+ * The platform only has a single process-wide authenticator, so installing one per request
+ * raced between concurrent requests through different proxies. This one is installed once and
+ * looks the credentials up by proxy host and port. Android's SOCKS implementation does not ask
+ * the authenticator but reads the java.net.socks system properties, so those are still set
+ * for every request and the last proxy registered wins there.
+ */
+class ProxyAuthenticator extends Authenticator {
+
+    private static ProxyAuthenticator sInstance;
+
+    private final ConcurrentHashMap<String, PasswordAuthentication> mCredentials =
+            new ConcurrentHashMap<>();
+
+    static void register(HttpProxy proxy) {
+        ProxyAuthenticator authenticator = getInstance();
+        authenticator.mCredentials.put(getKey(proxy.getHost(), proxy.getPort()),
+                new PasswordAuthentication(proxy.getUsername(), proxy.getPassword().toCharArray()));
+        System.setProperty("java.net.socks.username", proxy.getUsername());
+        System.setProperty("java.net.socks.password", proxy.getPassword());
+    }
+
+    private static synchronized ProxyAuthenticator getInstance() {
+        if (sInstance == null) {
+            sInstance = new ProxyAuthenticator();
+            Authenticator.setDefault(sInstance);
+        }
+        return sInstance;
+    }
+
+    private static String getKey(String host, int port) {
+        return host + ":" + port;
+    }
+
+    @Override
+    protected PasswordAuthentication getPasswordAuthentication() {
+        // The JDK asks for SOCKS credentials without marking the request as coming from a proxy.
+        if (getRequestorType() != RequestorType.PROXY
+                && !"SOCKS5".equals(getRequestingProtocol())) {
+            return null;
+        }
+        PasswordAuthentication credentials = null;
+        if (getRequestingHost() != null) {
+            credentials = mCredentials.get(getKey(getRequestingHost(), getRequestingPort()));
+        }
+        // The proxy may have been given as an address.
+        if (credentials == null && getRequestingSite() != null) {
+            credentials = mCredentials.get(
+                    getKey(getRequestingSite().getHostAddress(), getRequestingPort()));
+        }
+        return credentials;
+    }
+}
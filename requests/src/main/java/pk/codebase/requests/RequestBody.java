@@ -0,0 +1,103 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pk.codebase.requests;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * A non multipart payload, encoded to UTF-8 exactly once.
+ */
+abstract class RequestBody {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * @return the length in bytes, or -1 if it is only known once the body has been written.
+     */
+    abstract long getContentLength();
+
+    abstract void writeTo(OutputStream outputStream) throws IOException;
+
+    static RequestBody create(Object payload, JsonCodec jsonCodec, boolean chunked)
+            throws JsonProcessingException {
+        if (payload instanceof String) {
+            return new BytesRequestBody(((String) payload).getBytes(UTF_8));
+        } else if (payload instanceof JSONObject || payload instanceof JSONArray) {
+            return new BytesRequestBody(payload.toString().getBytes(UTF_8));
+        }
+        ObjectWriter writer = jsonCodec.writerFor(payload.getClass());
+        if (chunked) {
+            return new JsonRequestBody(writer, payload);
+        }
+        return new BytesRequestBody(writer.writeValueAsBytes(payload));
+    }
+
+    static RequestBody empty() {
+        return new BytesRequestBody(new byte[0]);
+    }
+
+    private static class BytesRequestBody extends RequestBody {
+        private final byte[] mContent;
+
+        private BytesRequestBody(byte[] content) {
+            mContent = content;
+        }
+
+        @Override
+        long getContentLength() {
+            return mContent.length;
+        }
+
+        @Override
+        void writeTo(OutputStream outputStream) throws IOException {
+            outputStream.write(mContent);
+        }
+    }
+
+    // Serializes straight into the connection, so the payload never exists in memory as a whole.
+    private static class JsonRequestBody extends RequestBody {
+        private final ObjectWriter mWriter;
+        private final Object mValue;
+
+        private JsonRequestBody(ObjectWriter writer, Object value) {
+            // Closing the connection stream is left to HttpBase.
+            mWriter = writer.without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            mValue = value;
+        }
+
+        @Override
+        long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        void writeTo(OutputStream outputStream) throws IOException {
+            mWriter.writeValue(outputStream, mValue);
+        }
+    }
+}
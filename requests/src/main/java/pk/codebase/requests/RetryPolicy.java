@@ -0,0 +1,150 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2016-2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pk.codebase.requests;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides which failed requests are tried again and how long to wait before each attempt.
+ *
+ * By default idempotent methods are retried after transient network errors, while POST and
+ * PATCH are only retried when the connection could not be established, as the server cannot
+ * have seen them yet. Host names that fail to resolve are not retried, nor are requests that
+ * fail before any I/O, such as those with invalid headers. 429 and 503 responses are retried
+ * after the Retry-After the server asked for. Otherwise the delay grows exponentially with full
+ * jitter, so clients that failed together do not retry in lockstep.
+ */
+public class RetryPolicy {
+
+    private static final long DEFAULT_BASE_DELAY = 500; // milliseconds
+    private static final long DEFAULT_MAX_DELAY = 30 * 1000; // 30 seconds
+
+    private static final Random sRandom = new Random();
+
+    public final int maxAttempts;
+    public final long baseDelay;
+    public final long maxDelay;
+
+    private boolean mRetryNonIdempotent;
+
+    public RetryPolicy(int maxAttempts) {
+        this(maxAttempts, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+    }
+
+    /**
+     * @param maxAttempts the total number of attempts, including the first one.
+     * @param baseDelay the delay cap in milliseconds before the first retry, doubled every retry.
+     * @param maxDelay the largest delay in milliseconds ever waited, also for Retry-After.
+     */
+    public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts < 1");
+        }
+        if (baseDelay < 0 || maxDelay < baseDelay) {
+            throw new IllegalArgumentException("0 <= baseDelay <= maxDelay must hold");
+        }
+        this.maxAttempts = maxAttempts;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Allows POST and PATCH to be retried after errors that happen once the request was sent.
+     * Only safe when the server deduplicates them, for example with an idempotency key.
+     */
+    public RetryPolicy setRetryNonIdempotent(boolean retryNonIdempotent) {
+        mRetryNonIdempotent = retryNonIdempotent;
+        return this;
+    }
+
+    boolean shouldRetry(String method, HttpError error) {
+        if (error.stage == HttpError.STAGE_CONNECTING) {
+            // A name that does not resolve now will not resolve a moment later either.
+            if (error.getCause() instanceof UnknownHostException) {
+                return false;
+            }
+            return error.code == HttpError.CONNECTION_REFUSED
+                    || error.code == HttpError.NETWORK_UNREACHABLE
+                    || error.code == HttpError.CONNECTION_TIMED_OUT
+                    || error.code == HttpError.LOST_CONNECTION
+                    // Anything but an I/O failure, like an invalid header, fails every time.
+                    || (error.code == HttpError.UNKNOWN && error.getCause() instanceof IOException);
+        }
+        if (error.stage == HttpError.STAGE_SENDING || error.stage == HttpError.STAGE_RECEIVING) {
+            return (isIdempotent(method) || mRetryNonIdempotent)
+                    && (error.code == HttpError.CONNECTION_TIMED_OUT
+                    || error.code == HttpError.LOST_CONNECTION);
+        }
+        return false;
+    }
+
+    boolean shouldRetry(String method, HttpResponse response) {
+        if (response.code == 429) {
+            // Too Many Requests: the server refused to process it, so any method may be retried.
+            return true;
+        }
+        return response.code == HttpResponse.HTTP_UNAVAILABLE
+                && (isIdempotent(method) || mRetryNonIdempotent);
+    }
+
+    /**
+     * @param attempt the number of the attempt that just failed, starting at 1.
+     * @return the milliseconds to wait before the next attempt, or -1 if the server asked for a
+     * longer wait than {@link #maxDelay}.
+     */
+    long getDelay(int attempt, HttpResponse response) {
+        long retryAfter = response == null ? -1 : getRetryAfter(response);
+        if (retryAfter >= 0) {
+            return retryAfter <= maxDelay ? retryAfter : -1;
+        }
+        long cap = baseDelay;
+        for (int i = 1; i < attempt && cap < maxDelay; i++) {
+            cap *= 2;
+        }
+        cap = Math.min(cap, maxDelay);
+        synchronized (sRandom) {
+            return (long) (sRandom.nextDouble() * (cap + 1));
+        }
+    }
+
+    private static long getRetryAfter(HttpResponse response) {
+        String retryAfter = response.headers.getHeader("Retry-After");
+        if (retryAfter == null) {
+            return -1;
+        }
+        try {
+            return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(retryAfter.trim())));
+        } catch (NumberFormatException ignore) {
+        }
+        Date date = CacheControl.parseDate(retryAfter);
+        if (date == null) {
+            return -1;
+        }
+        return Math.max(0, date.getTime() - System.currentTimeMillis());
+    }
+
+    static boolean isIdempotent(String method) {
+        return method.equals("GET") || method.equals("HEAD") || method.equals("PUT")
+                || method.equals("DELETE") || method.equals("OPTIONS") || method.equals("TRACE");
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2016-2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pk.codebase.requests;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Coalesces identical requests: while one is in flight, later ones with the same key attach to
+ * it and receive the same outcome instead of making their own round trip.
+ *
+ * Flights are grouped by a scope, compared by identity, so that requests whose responses are
+ * decoded differently (e.g. by another ObjectMapper) are never coalesced.
+ */
+class SingleFlight {
+
+    private static final SingleFlight sInstance = new SingleFlight();
+
+    private final IdentityHashMap<Object, HashMap<String, ArrayList<Callback>>> mFlights =
+            new IdentityHashMap<>();
+
+    static SingleFlight getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * A key covering everything that shapes the response: the method, URL, headers, proxy and
+     * the options that change how it is fetched or decoded.
+     */
+    static String getKey(String method, String url, HttpHeaders headers, HttpOptions options,
+                         HttpProxy httpProxy) {
+        if (options == null) {
+            options = new HttpOptions();
+        }
+        StringBuilder key = new StringBuilder(method).append(' ').append(url)
+                .append("\ntimeouts:").append(options.connectTimeout).append(',')
+                .append(options.readTimeout)
+                .append("\noptions:").append(options.isDecompress()).append(',')
+                .append(options.isStream()).append(',').append(options.isChunked());
+        if (httpProxy != null) {
+            key.append("\nproxy:").append(httpProxy.getHost()).append(':')
+                    .append(httpProxy.getPort()).append(',').append(httpProxy.getUsername())
+                    .append(',').append(httpProxy.getPassword());
+        }
+        if (headers != null) {
+            // Sorted, so the same headers always produce the same key.
+            for (Map.Entry<String, String> header : new TreeMap<>(headers).entrySet()) {
+                key.append('\n').append(header.getKey()).append(':').append(header.getValue());
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Attaches the callback to the flight for the key, starting a new flight if there is none.
+     *
+     * @return the callback that completes the new flight, or null if an existing flight was
+     * joined, in which case the caller must not make the request itself.
+     */
+    synchronized Callback join(final Object scope, final String key, Callback callback) {
+        HashMap<String, ArrayList<Callback>> flights = mFlights.get(scope);
+        if (flights == null) {
+            flights = new HashMap<>();
+            mFlights.put(scope, flights);
+        }
+        ArrayList<Callback> callbacks = flights.get(key);
+        if (callbacks != null) {
+            callbacks.add(callback);
+            return null;
+        }
+        final ArrayList<Callback> flight = new ArrayList<>();
+        flight.add(callback);
+        flights.put(key, flight);
+        return new Callback() {
+            @Override
+            public void onResponse(HttpResponse response) {
+                RuntimeException thrown = null;
+                for (Callback waiting : land(scope, key, flight)) {
+                    try {
+                        waiting.onResponse(response);
+                    } catch (RuntimeException e) {
+                        thrown = thrown == null ? e : thrown;
+                    }
+                }
+                if (thrown != null) {
+                    throw thrown;
+                }
+            }
+
+            @Override
+            public void onError(HttpError error) {
+                RuntimeException thrown = null;
+                for (Callback waiting : land(scope, key, flight)) {
+                    try {
+                        waiting.onError(error);
+                    } catch (RuntimeException e) {
+                        thrown = thrown == null ? e : thrown;
+                    }
+                }
+                if (thrown != null) {
+                    throw thrown;
+                }
+            }
+        };
+    }
+
+    // A flight lands only once, a second outcome for it is dropped rather than handed to a later
+    // flight with the same key. A listener that throws does not keep the others from being
+    // called, the first exception is rethrown after them.
+    private synchronized ArrayList<Callback> land(Object scope, String key,
+                                                  ArrayList<Callback> flight) {
+        HashMap<String, ArrayList<Callback>> flights = mFlights.get(scope);
+        if (flights == null || flights.get(key) != flight) {
+            return new ArrayList<>();
+        }
+        flights.remove(key);
+        if (flights.isEmpty()) {
+            mFlights.remove(scope);
+        }
+        return flight;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2016-2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pk.codebase.requests;
+
+import java.io.IOException;
+import java.net.Proxy;
+import java.net.URL;
+
+/**
+ * The engine that moves requests over the network. The default is the platform's
+ * HttpURLConnection, {@link NioTransport} is an event loop based alternative.
+ */
+public abstract class Transport {
+
+    // Build is missing on a desktop JVM, or reads as API 0 from the stub android.jar, yet the
+    // JVM has every API the transports check the API level for.
+    static final boolean ANDROID = "Dalvik".equals(System.getProperty("java.vm.name"));
+    // By number, the android.jar the benchmark module compiles against predates both codes.
+    static final int KITKAT = 19;
+    static final int N = 24;
+
+    private static Transport sDefault;
+
+    public static synchronized void setDefault(Transport transport) {
+        sDefault = transport;
+    }
+
+    public static synchronized Transport getDefault() {
+        if (sDefault == null) {
+            sDefault = new UrlConnectionTransport();
+        }
+        return sDefault;
+    }
+
+    /**
+     * @param proxy the proxy to connect through, null to connect directly.
+     */
+    abstract Exchange newExchange(URL url, Proxy proxy) throws IOException;
+}
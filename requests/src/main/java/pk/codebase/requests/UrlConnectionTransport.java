@@ -0,0 +1,185 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2016-2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pk.codebase.requests;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.Proxy;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+
+/**
+ * Sends requests through the platform's HttpURLConnection, which pools connections as
+ * configured by {@link ConnectionPool}.
+ */
+class UrlConnectionTransport extends Transport {
+
+    @Override
+    Exchange newExchange(URL url, Proxy proxy) throws IOException {
+        HttpURLConnection connection;
+        if (proxy != null) {
+            connection = (HttpURLConnection) url.openConnection(proxy);
+        } else {
+            connection = (HttpURLConnection) url.openConnection();
+        }
+        return new UrlConnectionExchange(connection);
+    }
+
+    static class UrlConnectionExchange extends Exchange {
+        private final HttpURLConnection mConnection;
+
+        UrlConnectionExchange(HttpURLConnection connection) {
+            mConnection = connection;
+        }
+
+        @Override
+        void setRequestMethod(String method) throws ProtocolException {
+            mConnection.setRequestMethod(method);
+        }
+
+        @Override
+        String getRequestMethod() {
+            return mConnection.getRequestMethod();
+        }
+
+        @Override
+        void setConnectTimeout(int timeout) {
+            mConnection.setConnectTimeout(timeout);
+        }
+
+        @Override
+        void setReadTimeout(int timeout) {
+            mConnection.setReadTimeout(timeout);
+        }
+
+        @Override
+        void setRequestProperty(String name, String value) {
+            mConnection.setRequestProperty(name, value);
+        }
+
+        @Override
+        void setFixedLengthStreamingMode(long length) {
+            mConnection.setDoOutput(true);
+            if (!ANDROID || Build.VERSION.SDK_INT >= KITKAT) {
+                setFixedLengthStreamingMode(mConnection, length);
+            } else if (length <= Integer.MAX_VALUE) {
+                // Older devices can only declare lengths that fit in an int and have to send
+                // anything larger chunked.
+                mConnection.setFixedLengthStreamingMode((int) length);
+            } else {
+                mConnection.setChunkedStreamingMode(0);
+            }
+        }
+
+        @TargetApi(KITKAT)
+        private static void setFixedLengthStreamingMode(HttpURLConnection connection, long length) {
+            connection.setFixedLengthStreamingMode(length);
+        }
+
+        @Override
+        void setChunkedStreamingMode() {
+            mConnection.setDoOutput(true);
+            mConnection.setChunkedStreamingMode(0);
+        }
+
+        @Override
+        void connect(EventListener eventListener) throws IOException {
+            if (eventListener == null) {
+                mConnection.connect();
+                return;
+            }
+            EventSocketFactory socketFactory = null;
+            // A custom factory set by the app is left alone, TLS is then just not reported.
+            if (mConnection instanceof HttpsURLConnection) {
+                HttpsURLConnection connection = (HttpsURLConnection) mConnection;
+                EventSocketFactory factory = EventSocketFactory.getInstance();
+                if (connection.getSSLSocketFactory() == factory.getDelegate()) {
+                    connection.setSSLSocketFactory(factory);
+                    socketFactory = factory;
+                    socketFactory.startConnecting();
+                }
+            }
+            long connectStart = System.nanoTime();
+            long secureConnectStart;
+            try {
+                mConnection.connect();
+            } finally {
+                secureConnectStart = socketFactory == null ? -1 : socketFactory.finishConnecting();
+            }
+            // Over HTTPS a reused connection is told apart by no socket being created, plain
+            // HTTP gives no such hint and always reports the time spent in connect().
+            if (socketFactory != null && secureConnectStart < 0) {
+                return;
+            }
+            // The handshake is part of connecting, so it is complete once connect() returns.
+            long now = System.nanoTime();
+            eventListener.connectStart(connectStart);
+            if (secureConnectStart >= 0) {
+                eventListener.secureConnectStart(secureConnectStart);
+                eventListener.secureConnectEnd(now);
+            }
+            eventListener.connectEnd(now);
+        }
+
+        @Override
+        OutputStream getOutputStream() throws IOException {
+            return mConnection.getOutputStream();
+        }
+
+        // Responses with an error status have their body in the error stream instead, a
+        // failure to connect surfaces again from getResponseCode().
+        @Override
+        InputStream getResponseBody() {
+            try {
+                return mConnection.getInputStream();
+            } catch (IOException ignore) {
+                return mConnection.getErrorStream();
+            }
+        }
+
+        @Override
+        int getResponseCode() throws IOException {
+            return mConnection.getResponseCode();
+        }
+
+        @Override
+        String getResponseMessage() throws IOException {
+            return mConnection.getResponseMessage();
+        }
+
+        @Override
+        Map<String, List<String>> getHeaderFields() {
+            return mConnection.getHeaderFields();
+        }
+
+        @Override
+        void disconnect() {
+            mConnection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2016-2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package pk.codebase.requests;
+
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class DispatcherTest {
+
+    @Test
+    public void executorRejectionReachesTheCall() {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        // Shut down from outside, so it refuses whatever the dispatcher hands it.
+        executor.shutdown();
+        Dispatcher dispatcher = new Dispatcher(4, 2, 16, executor);
+        final AtomicInteger ran = new AtomicInteger();
+        final AtomicInteger rejected = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            dispatcher.enqueue("example.com", new Runnable() {
+                @Override
+                public void run() {
+                    ran.incrementAndGet();
+                }
+            }, new Dispatcher.RejectionListener() {
+                @Override
+                public void onRejected(RejectedExecutionException e) {
+                    rejected.incrementAndGet();
+                }
+            });
+        }
+        assertEquals(0, ran.get());
+        assertEquals(3, rejected.get());
+        assertEquals(0, dispatcher.getRunningCallsCount());
+        assertEquals(0, dispatcher.getQueuedCallsCount());
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2016-2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package pk.codebase.requests;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class HedgedCallTest {
+
+    @Test(timeout = 10000)
+    public void attemptThatThrowsIsReportedAsError() {
+        final IllegalStateException thrown = new IllegalStateException("listener");
+        HedgedCall call = new HedgedCall(new HedgingPolicy(5000), "example.com",
+                new HedgedCall.Attempt() {
+                    @Override
+                    public HttpBase create() {
+                        return new HttpBase();
+                    }
+
+                    @Override
+                    public HttpResponse run(HttpBase http) {
+                        throw thrown;
+                    }
+                });
+        try {
+            call.execute();
+            fail();
+        } catch (HttpError e) {
+            assertEquals(HttpError.UNKNOWN, e.code);
+            assertEquals(HttpError.STAGE_UNKNOWN, e.stage);
+            assertSame(thrown, e.getCause());
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2016-2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package pk.codebase.requests;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * The decoder is checked against the examples of RFC 7541 Appendix C, blocks of one appendix
+ * share a decoder like the requests or responses on one connection do.
+ */
+public class HpackTest {
+
+    static byte[] hex(String text) {
+        text = text.replace(" ", "");
+        byte[] bytes = new byte[text.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(text.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static List<String> decode(Hpack.Decoder decoder, String block) throws IOException {
+        byte[] bytes = hex(block);
+        List<String> fields = new ArrayList<>();
+        decoder.decode(bytes, 0, bytes.length, fields);
+        return fields;
+    }
+
+    private static byte[] encode(String... fields) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new Hpack.Encoder().encode(Arrays.asList(fields), out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void literalWithIndexing() throws IOException {
+        // C.2.1
+        Hpack.Decoder decoder = new Hpack.Decoder();
+        assertEquals(Arrays.asList("custom-key", "custom-header"), decode(decoder,
+                "400a 6375 7374 6f6d 2d6b 6579 0d63 7573 746f 6d2d 6865 6164 6572"));
+        // Now the first entry of the dynamic table.
+        assertEquals(Arrays.asList("custom-key", "custom-header"), decode(decoder, "be"));
+    }
+
+    @Test
+    public void literalWithoutIndexing() throws IOException {
+        // C.2.2
+        Hpack.Decoder decoder = new Hpack.Decoder();
+        assertEquals(Arrays.asList(":path", "/sample/path"), decode(decoder,
+                "040c 2f73 616d 706c 652f 7061 7468"));
+        try {
+            decode(decoder, "be");
+            fail();
+        } catch (ProtocolException expected) {
+        }
+    }
+
+    @Test
+    public void literalNeverIndexed() throws IOException {
+        // C.2.3
+        assertEquals(Arrays.asList("password", "secret"), decode(new Hpack.Decoder(),
+                "1008 7061 7373 776f 7264 0673 6563 7265 74"));
+    }
+
+    @Test
+    public void indexed() throws IOException {
+        // C.2.4
+        assertEquals(Arrays.asList(":method", "GET"), decode(new Hpack.Decoder(), "82"));
+    }
+
+    @Test
+    public void requestsWithoutHuffman() throws IOException {
+        // C.3
+        Hpack.Decoder decoder = new Hpack.Decoder();
+        assertEquals(Arrays.asList(":method", "GET", ":scheme", "http", ":path", "/",
+                ":authority", "www.example.com"), decode(decoder,
+                "8286 8441 0f77 7777 2e65 7861 6d70 6c65 2e63 6f6d"));
+        assertEquals(Arrays.asList(":method", "GET", ":scheme", "http", ":path", "/",
+                ":authority", "www.example.com", "cache-control", "no-cache"), decode(decoder,
+                "8286 84be 5808 6e6f 2d63 6163 6865"));
+        assertEquals(Arrays.asList(":method", "GET", ":scheme", "https", ":path", "/index.html",
+                ":authority", "www.example.com", "custom-key", "custom-value"), decode(decoder,
+                "8287 85bf 400a 6375 7374 6f6d 2d6b 6579 0c63 7573 746f 6d2d 7661 6c75 65"));
+    }
+
+    @Test
+    public void requestsWithHuffman() throws IOException {
+        // C.4
+        Hpack.Decoder decoder = new Hpack.Decoder();
+        assertEquals(Arrays.asList(":method", "GET", ":scheme", "http", ":path", "/",
+                ":authority", "www.example.com"), decode(decoder,
+                "8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff"));
+        assertEquals(Arrays.asList(":method", "GET", ":scheme", "http", ":path", "/",
+                ":authority", "www.example.com", "cache-control", "no-cache"), decode(decoder,
+                "8286 84be 5886 a8eb 1064 9cbf"));
+        assertEquals(Arrays.asList(":method", "GET", ":scheme", "https", ":path", "/index.html",
+                ":authority", "www.example.com", "custom-key", "custom-value"), decode(decoder,
+                "8287 85bf 4088 25a8 49e9 5ba9 7d7f 8925 a849 e95b b8e8 b4bf"));
+    }
+
+    // The examples assume a 256 byte table, which evicts only entries that are no longer
+    // referenced, so the results are the same with the default size.
+    @Test
+    public void responsesWithoutHuffman() throws IOException {
+        // C.5
+        Hpack.Decoder decoder = new Hpack.Decoder();
+        assertEquals(Arrays.asList(":status", "302", "cache-control", "private",
+                "date", "Mon, 21 Oct 2013 20:13:21 GMT", "location", "https://www.example.com"),
+                decode(decoder, "4803 3330 3258 0770 7269 7661 7465 611d 4d6f 6e2c 2032 3120"
+                        + "4f63 7420 3230 3133 2032 303a 3133 3a32 3120 474d 546e 1768 7474"
+                        + "7073 3a2f 2f77 7777 2e65 7861 6d70 6c65 2e63 6f6d"));
+        assertEquals(Arrays.asList(":status", "307", "cache-control", "private",
+                "date", "Mon, 21 Oct 2013 20:13:21 GMT", "location", "https://www.example.com"),
+                decode(decoder, "4803 3330 37c1 c0bf"));
+        assertEquals(Arrays.asList(":status", "200", "cache-control", "private",
+                "date", "Mon, 21 Oct 2013 20:13:22 GMT", "location", "https://www.example.com",
+                "content-encoding", "gzip",
+                "set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1"),
+                decode(decoder, "88c1 611d 4d6f 6e2c 2032 3120 4f63 7420 3230 3133 2032 303a"
+                        + "3133 3a32 3220 474d 54c0 5a04 677a 6970 7738 666f 6f3d 4153 444a"
+                        + "4b48 514b 425a 584f 5157 454f 5049 5541 5851 5745 4f49 553b 206d"
+                        + "6178 2d61 6765 3d33 3630 303b 2076 6572 7369 6f6e 3d31"));
+    }
+
+    @Test
+    public void responsesWithHuffman() throws IOException {
+        // C.6
+        Hpack.Decoder decoder = new Hpack.Decoder();
+        assertEquals(Arrays.asList(":status", "302", "cache-control", "private",
+                "date", "Mon, 21 Oct 2013 20:13:21 GMT", "location", "https://www.example.com"),
+                decode(decoder, "4882 6402 5885 aec3 771a 4b61 96d0 7abe 9410 54d4 44a8 2005"
+                        + "9504 0b81 66e0 82a6 2d1b ff6e 919d 29ad 1718 63c7 8f0b 97c8 e9ae"
+                        + "82ae 43d3"));
+        assertEquals(Arrays.asList(":status", "307", "cache-control", "private",
+                "date", "Mon, 21 Oct 2013 20:13:21 GMT", "location", "https://www.example.com"),
+                decode(decoder, "4883 640e ffc1 c0bf"));
+        assertEquals(Arrays.asList(":status", "200", "cache-control", "private",
+                "date", "Mon, 21 Oct 2013 20:13:22 GMT", "location", "https://www.example.com",
+                "content-encoding", "gzip",
+                "set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1"),
+                decode(decoder, "88c1 6196 d07a be94 1054 d444 a820 0595 040b 8166 e084 a62d"
+                        + "1bff c05a 839b d9ab 77ad 94e7 821d d7f2 e6c7 b335 dfdf cd5b 3960"
+                        + "d5af 2708 7f36 72c1 ab27 0fb5 291f 9587 3160 65c0 03ed 4ee5 b106"
+                        + "3d50 07"));
+    }
+
+    @Test
+    public void tableSizeUpdateAboveTheLimitIsRejected() throws IOException {
+        try {
+            // 4097, above the 4096 bytes we allow.
+            decode(new Hpack.Decoder(), "3fe2 1f");
+            fail();
+        } catch (ProtocolException expected) {
+        }
+    }
+
+    @Test
+    public void tableSizeUpdateEvicts() throws IOException {
+        Hpack.Decoder decoder = new Hpack.Decoder();
+        decode(decoder, "400a 6375 7374 6f6d 2d6b 6579 0d63 7573 746f 6d2d 6865 6164 6572");
+        decode(decoder, "20");
+        try {
+            decode(decoder, "be");
+            fail();
+        } catch (ProtocolException expected) {
+        }
+    }
+
+    @Test
+    public void encoderUsesStaticTable() {
+        assertArrayEquals(hex("82"), encode(":method", "GET"));
+        // C.4.1, the name from the static table and a Huffman coded value, but not indexed.
+        assertArrayEquals(hex("018c f1e3 c2e5 f23a 6ba0 ab90 f4ff"),
+                encode(":authority", "www.example.com"));
+        // Shorter as it is than the Huffman code.
+        assertArrayEquals(hex("0003 7a7a 7a01 7e"), encode("zzz", "~"));
+    }
+
+    @Test
+    public void encoderNeverIndexesCredentials() {
+        assertEquals(0x1f, encode("authorization", "Bearer xyz")[0] & 0xff);
+        assertEquals(0x1f, encode("proxy-authorization", "Basic eHl6")[0] & 0xff);
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        List<String> fields = Arrays.asList(":method", "POST", ":scheme", "https",
+                ":authority", "example.com:8443", ":path", "/upload?name=café",
+                "content-type", "application/json", "x-empty", "", "user-agent",
+                "requests/0.6", "authorization", "Bearer xyz");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new Hpack.Encoder().encode(fields, out);
+        byte[] block = out.toByteArray();
+        List<String> decoded = new ArrayList<>();
+        new Hpack.Decoder().decode(block, 0, block.length, decoded);
+        assertEquals(fields, decoded);
+    }
+}
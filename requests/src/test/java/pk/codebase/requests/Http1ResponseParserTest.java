@@ -0,0 +1,259 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2016-2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package pk.codebase.requests;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class Http1ResponseParserTest {
+
+    private static class Recorder implements Http1ResponseParser.Callback {
+        int heads;
+        int code;
+        String message;
+        Map<String, List<String>> headers;
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        boolean last;
+        int completions;
+
+        @Override
+        public void onResponseHead(int code, String message, Map<String, List<String>> headers) {
+            heads++;
+            this.code = code;
+            this.message = message;
+            this.headers = headers;
+        }
+
+        @Override
+        public void onBody(ByteBuffer data, boolean last) {
+            while (data.hasRemaining()) {
+                body.write(data.get());
+            }
+            this.last |= last;
+        }
+
+        @Override
+        public void onComplete() {
+            completions++;
+        }
+
+        String getBody() {
+            return new String(body.toByteArray(), NioExchange.ISO_8859_1);
+        }
+    }
+
+    private static ByteBuffer bytes(String text) {
+        return ByteBuffer.wrap(text.getBytes(NioExchange.ISO_8859_1));
+    }
+
+    // Feeds the response one byte at a time, so every state has to resume mid-way.
+    private static void parseBytewise(Http1ResponseParser parser, String response)
+            throws IOException {
+        ByteBuffer data = bytes(response);
+        while (data.hasRemaining()) {
+            ByteBuffer one = ByteBuffer.allocate(1);
+            one.put(data.get());
+            one.flip();
+            parser.parse(one);
+        }
+    }
+
+    @Test
+    public void fixedLength() throws IOException {
+        Recorder recorder = new Recorder();
+        Http1ResponseParser parser = new Http1ResponseParser("GET", recorder);
+        parser.parse(bytes("HTTP/1.1 200 OK\r\nContent-Length: 5\r\nX-Multi: 1\r\n"
+                + "x-multi: 2\r\n\r\nhello"));
+        assertEquals(200, recorder.code);
+        assertEquals("OK", recorder.message);
+        assertEquals("HTTP/1.1 200 OK", recorder.headers.get(null).get(0));
+        assertEquals(2, recorder.headers.get("X-Multi").size());
+        assertEquals("hello", recorder.getBody());
+        assertTrue(recorder.last);
+        assertEquals(0, recorder.completions);
+        assertTrue(parser.isComplete());
+        assertTrue(parser.isReusable());
+    }
+
+    @Test
+    public void chunked() throws IOException {
+        Recorder recorder = new Recorder();
+        Http1ResponseParser parser = new Http1ResponseParser("GET", recorder);
+        parseBytewise(parser, "HTTP/1.1 200 OK\r\nTransfer-Encoding: gzip, chunked\r\n\r\n"
+                + "5;name=value\r\nhello\r\n1A\r\n, abcdefghijklmnopqrstuvwx\r\n0\r\n"
+                + "X-Trailer: yes\r\n\r\n");
+        assertEquals("hello, abcdefghijklmnopqrstuvwx", recorder.getBody());
+        assertEquals(1, recorder.completions);
+        assertTrue(parser.isComplete());
+        assertTrue(parser.isReusable());
+    }
+
+    @Test
+    public void chunkWithoutTrailingCrlfIsRejected() throws IOException {
+        Http1ResponseParser parser = new Http1ResponseParser("GET", new Recorder());
+        try {
+            parser.parse(bytes("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                    + "2\r\nabcd\r\n"));
+            fail();
+        } catch (ProtocolException expected) {
+        }
+    }
+
+    @Test
+    public void invalidChunkSizeIsRejected() throws IOException {
+        Http1ResponseParser parser = new Http1ResponseParser("GET", new Recorder());
+        try {
+            parser.parse(bytes("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\nzz\r\n"));
+            fail();
+        } catch (ProtocolException expected) {
+        }
+    }
+
+    @Test
+    public void interimResponsesAreSkipped() throws IOException {
+        Recorder recorder = new Recorder();
+        Http1ResponseParser parser = new Http1ResponseParser("POST", recorder);
+        parser.parse(bytes("HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 103 Early Hints\r\n"
+                + "Link: </style.css>\r\n\r\nHTTP/1.1 201 Created\r\nContent-Length: 2\r\n\r\nok"));
+        assertEquals(1, recorder.heads);
+        assertEquals(201, recorder.code);
+        assertNull(recorder.headers.get("Link"));
+        assertEquals("ok", recorder.getBody());
+        assertTrue(parser.isComplete());
+    }
+
+    @Test
+    public void protocolSwitchIsRejected() throws IOException {
+        Http1ResponseParser parser = new Http1ResponseParser("GET", new Recorder());
+        try {
+            parser.parse(bytes("HTTP/1.1 101 Switching Protocols\r\nUpgrade: h2c\r\n\r\n"));
+            fail();
+        } catch (ProtocolException expected) {
+        }
+    }
+
+    @Test
+    public void headResponseHasNoBody() throws IOException {
+        Recorder recorder = new Recorder();
+        Http1ResponseParser parser = new Http1ResponseParser("HEAD", recorder);
+        parser.parse(bytes("HTTP/1.1 200 OK\r\nContent-Length: 100\r\n"
+                + "Transfer-Encoding: chunked\r\n\r\n"));
+        assertEquals(200, recorder.code);
+        assertEquals(0, recorder.body.size());
+        assertEquals(1, recorder.completions);
+        assertTrue(parser.isComplete());
+        assertTrue(parser.isReusable());
+    }
+
+    @Test
+    public void noContentAndNotModifiedHaveNoBody() throws IOException {
+        for (int code : new int[]{204, 304}) {
+            Recorder recorder = new Recorder();
+            Http1ResponseParser parser = new Http1ResponseParser("GET", recorder);
+            parser.parse(bytes("HTTP/1.1 " + code + " Nothing\r\nContent-Length: 10\r\n\r\n"));
+            assertEquals(code, recorder.code);
+            assertEquals(1, recorder.completions);
+            assertTrue(parser.isComplete());
+            assertTrue(parser.isReusable());
+        }
+    }
+
+    @Test
+    public void bytesAfterTheResponseMakeItUnreusable() throws IOException {
+        Recorder recorder = new Recorder();
+        Http1ResponseParser parser = new Http1ResponseParser("GET", recorder);
+        parser.parse(bytes("HTTP/1.1 204 No Content\r\n\r\ngarbage"));
+        assertTrue(parser.isComplete());
+        assertFalse(parser.isReusable());
+    }
+
+    @Test
+    public void bodyUntilClose() throws IOException {
+        Recorder recorder = new Recorder();
+        Http1ResponseParser parser = new Http1ResponseParser("GET", recorder);
+        parser.parse(bytes("HTTP/1.1 200 OK\r\n\r\nsome"));
+        parser.parse(bytes(" more"));
+        assertFalse(parser.isComplete());
+        parser.onEndOfStream();
+        assertEquals("some more", recorder.getBody());
+        assertEquals(1, recorder.completions);
+        assertFalse(parser.isReusable());
+    }
+
+    @Test
+    public void truncatedBodyFails() throws IOException {
+        Http1ResponseParser parser = new Http1ResponseParser("GET", new Recorder());
+        parser.parse(bytes("HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\nshort"));
+        try {
+            parser.onEndOfStream();
+            fail();
+        } catch (SocketException expected) {
+        }
+    }
+
+    @Test
+    public void connectionHeaderDecidesReuse() throws IOException {
+        Http1ResponseParser parser = new Http1ResponseParser("GET", new Recorder());
+        parser.parse(bytes("HTTP/1.1 200 OK\r\nConnection: close\r\nContent-Length: 0\r\n\r\n"));
+        assertFalse(parser.isReusable());
+
+        parser = new Http1ResponseParser("GET", new Recorder());
+        parser.parse(bytes("HTTP/1.0 200 OK\r\nContent-Length: 0\r\n\r\n"));
+        assertFalse(parser.isReusable());
+
+        parser = new Http1ResponseParser("GET", new Recorder());
+        parser.parse(bytes("HTTP/1.0 200 OK\r\nConnection: Keep-Alive\r\n"
+                + "Content-Length: 0\r\n\r\n"));
+        assertTrue(parser.isReusable());
+    }
+
+    @Test
+    public void invalidStatusLineIsRejected() throws IOException {
+        Http1ResponseParser parser = new Http1ResponseParser("GET", new Recorder());
+        try {
+            parser.parse(bytes("SSH-2.0-OpenSSH_8.9\r\n"));
+            fail();
+        } catch (ProtocolException expected) {
+        }
+    }
+
+    @Test
+    public void invalidContentLengthIsRejected() throws IOException {
+        Http1ResponseParser parser = new Http1ResponseParser("GET", new Recorder());
+        try {
+            parser.parse(bytes("HTTP/1.1 200 OK\r\nContent-Length: -1\r\n\r\n"));
+            fail();
+        } catch (ProtocolException expected) {
+        }
+    }
+}
@@ -0,0 +1,402 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2016-2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package pk.codebase.requests;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs an {@link Http2Connection} against a server played by the test over a local socket.
+ */
+public class Http2ConnectionTest {
+
+    private static final int TYPE_DATA = 0x0;
+    private static final int TYPE_HEADERS = 0x1;
+    private static final int TYPE_RST_STREAM = 0x3;
+    private static final int TYPE_SETTINGS = 0x4;
+    private static final int TYPE_PUSH_PROMISE = 0x5;
+    private static final int TYPE_PING = 0x6;
+    private static final int TYPE_GOAWAY = 0x7;
+    private static final int TYPE_WINDOW_UPDATE = 0x8;
+
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+
+    private static final List<String> GET = Arrays.asList(":method", "GET", ":scheme", "http",
+            ":authority", "localhost", ":path", "/");
+
+    private static class Frame {
+        int type;
+        int flags;
+        int streamId;
+        byte[] payload;
+
+        int getInt(int offset) {
+            return ByteBuffer.wrap(payload, offset, 4).getInt();
+        }
+    }
+
+    private NioEventLoop mLoop;
+    private ServerSocket mServer;
+    private Socket mPeer;
+    private DataInputStream mIn;
+    private DataOutputStream mOut;
+    private Http2Connection mConnection;
+
+    @Before
+    public void setUp() throws IOException {
+        mLoop = new NioEventLoop("Test NIO");
+        mServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (mConnection != null) {
+            mConnection.close();
+        }
+        if (mPeer != null) {
+            mPeer.close();
+        }
+        mServer.close();
+        mLoop.shutdown();
+    }
+
+    // Connects with the server settings given as identifier and value pairs, and reads what
+    // the client sends in return up to its acknowledgement of them.
+    private void connect(int... settings) throws IOException {
+        NioConnection connection = new NioConnection(mLoop, "localhost", mServer.getLocalPort(),
+                null);
+        connection.connect(new InetSocketAddress[]{new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), mServer.getLocalPort())}, 5000);
+        mPeer = mServer.accept();
+        mPeer.setSoTimeout(5000);
+        mIn = new DataInputStream(mPeer.getInputStream());
+        mOut = new DataOutputStream(mPeer.getOutputStream());
+        ByteBuffer payload = ByteBuffer.allocate(settings.length * 3);
+        for (int i = 0; i < settings.length; i += 2) {
+            payload.putShort((short) settings[i]).putInt(settings[i + 1]);
+        }
+        // Already waiting when the client starts, which returns once it got them.
+        writeFrame(TYPE_SETTINGS, 0, 0, payload.array());
+        mConnection = new Http2Connection(new NioTransport(), connection);
+        mConnection.start(5000);
+
+        byte[] preface = new byte[24];
+        mIn.readFully(preface);
+        assertEquals("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n",
+                new String(preface, NioExchange.ISO_8859_1));
+        Frame clientSettings = readFrame();
+        assertEquals(TYPE_SETTINGS, clientSettings.type);
+        // Push disabled, and the stream receive window.
+        assertArrayEquals(new byte[]{0, 2, 0, 0, 0, 0, 0, 4, 0, 16, 0, 0},
+                clientSettings.payload);
+        Frame windowUpdate = readFrame();
+        assertEquals(TYPE_WINDOW_UPDATE, windowUpdate.type);
+        assertEquals(0, windowUpdate.streamId);
+        assertEquals(16 * 1024 * 1024 - 65535, windowUpdate.getInt(0));
+        Frame ack = readFrame();
+        assertEquals(TYPE_SETTINGS, ack.type);
+        assertEquals(FLAG_ACK, ack.flags);
+        assertEquals(0, ack.payload.length);
+    }
+
+    private Frame readFrame() throws IOException {
+        Frame frame = new Frame();
+        int length = mIn.readUnsignedShort() << 8 | mIn.readUnsignedByte();
+        frame.type = mIn.readUnsignedByte();
+        frame.flags = mIn.readUnsignedByte();
+        frame.streamId = mIn.readInt() & 0x7fffffff;
+        frame.payload = new byte[length];
+        mIn.readFully(frame.payload);
+        return frame;
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload)
+            throws IOException {
+        mOut.writeShort(payload.length >>> 8);
+        mOut.writeByte(payload.length);
+        mOut.writeByte(type);
+        mOut.writeByte(flags);
+        mOut.writeInt(streamId);
+        mOut.write(payload);
+        mOut.flush();
+    }
+
+    private void writeHeaders(int streamId, boolean endStream, String... fields)
+            throws IOException {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        new Hpack.Encoder().encode(Arrays.asList(fields), block);
+        writeFrame(TYPE_HEADERS, FLAG_END_HEADERS | (endStream ? FLAG_END_STREAM : 0), streamId,
+                block.toByteArray());
+    }
+
+    private static byte[] ints(int... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 4);
+        for (int value : values) {
+            buffer.putInt(value);
+        }
+        return buffer.array();
+    }
+
+    private static List<String> decode(Frame frame) throws IOException {
+        List<String> fields = new ArrayList<>();
+        new Hpack.Decoder().decode(frame.payload, 0, frame.payload.length, fields);
+        return fields;
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), NioExchange.ISO_8859_1);
+    }
+
+    // The client handles frames in order, so once a PING is acknowledged everything sent
+    // before it has been processed.
+    private void sync() throws IOException {
+        writeFrame(TYPE_PING, 0, 0, new byte[8]);
+        Frame pong = readFrame();
+        assertEquals(TYPE_PING, pong.type);
+    }
+
+    private void assertClosedByClient() throws IOException {
+        try {
+            while (true) {
+                readFrame();
+            }
+        } catch (EOFException expected) {
+        }
+    }
+
+    @Test
+    public void pingIsAcknowledged() throws IOException {
+        connect();
+        byte[] data = {1, 2, 3, 4, 5, 6, 7, 8};
+        writeFrame(TYPE_PING, 0, 0, data);
+        Frame pong = readFrame();
+        assertEquals(TYPE_PING, pong.type);
+        assertEquals(FLAG_ACK, pong.flags);
+        assertArrayEquals(data, pong.payload);
+    }
+
+    @Test
+    public void requestAndResponse() throws IOException {
+        connect();
+        Http2Stream stream = mConnection.newStream(GET, false, 0, 5000);
+        Frame headers = readFrame();
+        assertEquals(TYPE_HEADERS, headers.type);
+        assertEquals(FLAG_END_HEADERS | FLAG_END_STREAM, headers.flags);
+        assertEquals(1, headers.streamId);
+        assertEquals(GET, decode(headers));
+
+        writeHeaders(1, false, ":status", "200", "content-type", "text/plain");
+        writeFrame(TYPE_DATA, 0, 1, "hello, ".getBytes(NioExchange.ISO_8859_1));
+        writeFrame(TYPE_DATA, FLAG_END_STREAM, 1, "world".getBytes(NioExchange.ISO_8859_1));
+        stream.awaitResponseHead();
+        assertEquals(200, stream.getCode());
+        assertEquals("text/plain", stream.getHeaders().get("content-type").get(0));
+        assertEquals("hello, world", readAll(stream.getResponseBody()));
+        sync();
+        assertTrue(mConnection.isIdleFor(0));
+
+        // Stream identifiers keep increasing.
+        mConnection.newStream(GET, false, 0, 5000);
+        assertEquals(3, readFrame().streamId);
+    }
+
+    @Test
+    public void maxConcurrentStreamsIsHonored() throws IOException {
+        connect(0x3, 1);
+        assertTrue(mConnection.hasCapacity());
+        Http2Stream stream = mConnection.newStream(GET, false, 0, 5000);
+        assertFalse(mConnection.hasCapacity());
+        assertNull(mConnection.newStream(GET, false, 0, 5000));
+        readFrame();
+        writeHeaders(stream.id, true, ":status", "204");
+        stream.awaitResponseHead();
+        assertEquals(204, stream.getCode());
+        sync();
+        assertTrue(mConnection.hasCapacity());
+    }
+
+    @Test
+    public void requestBodyWaitsForTheSendWindow() throws Exception {
+        connect(0x4, 10);
+        final Http2Stream stream = mConnection.newStream(Arrays.asList(":method", "POST",
+                ":scheme", "http", ":authority", "localhost", ":path", "/"), true, 25, 5000);
+        final IOException[] failure = new IOException[1];
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    OutputStream out = stream.getOutputStream();
+                    out.write("0123456789abcdefghijklmno".getBytes(NioExchange.ISO_8859_1));
+                    stream.finishRequest(true);
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            }
+        });
+        writer.start();
+        Frame headers = readFrame();
+        assertEquals(TYPE_HEADERS, headers.type);
+        assertEquals(FLAG_END_HEADERS, headers.flags);
+        Frame first = readFrame();
+        assertEquals(TYPE_DATA, first.type);
+        assertEquals(0, first.flags);
+        assertEquals("0123456789", new String(first.payload, NioExchange.ISO_8859_1));
+
+        writeFrame(TYPE_WINDOW_UPDATE, 0, stream.id, ints(15));
+        Frame second = readFrame();
+        assertEquals(TYPE_DATA, second.type);
+        assertEquals(FLAG_END_STREAM, second.flags);
+        assertEquals("abcdefghijklmno", new String(second.payload, NioExchange.ISO_8859_1));
+        writer.join(5000);
+        assertNull(failure[0]);
+    }
+
+    @Test
+    public void consumedDataOpensTheReceiveWindow() throws IOException {
+        connect();
+        Http2Stream stream = mConnection.newStream(GET, false, 0, 5000);
+        readFrame();
+        writeHeaders(stream.id, false, ":status", "200");
+        byte[] data = new byte[16384];
+        int frames = Http2Connection.STREAM_RECEIVE_WINDOW / 2 / data.length;
+        for (int i = 0; i < frames; i++) {
+            writeFrame(TYPE_DATA, 0, stream.id, data);
+        }
+        InputStream body = stream.getResponseBody();
+        byte[] buffer = new byte[data.length];
+        for (int i = 0; i < frames; i++) {
+            new DataInputStream(body).readFully(buffer);
+        }
+        Frame windowUpdate = readFrame();
+        assertEquals(TYPE_WINDOW_UPDATE, windowUpdate.type);
+        assertEquals(stream.id, windowUpdate.streamId);
+        assertEquals(Http2Connection.STREAM_RECEIVE_WINDOW / 2, windowUpdate.getInt(0));
+    }
+
+    @Test
+    public void readTimeoutCancelsTheStream() throws IOException {
+        connect();
+        Http2Stream stream = mConnection.newStream(GET, false, 0, 500);
+        readFrame();
+        try {
+            stream.awaitResponseHead();
+            fail();
+        } catch (SocketTimeoutException expected) {
+        }
+        Frame reset = readFrame();
+        assertEquals(TYPE_RST_STREAM, reset.type);
+        assertEquals(stream.id, reset.streamId);
+        assertEquals(0x8, reset.getInt(0));
+        // Fails at once from then on, rather than after another timeout.
+        long start = System.nanoTime();
+        try {
+            stream.awaitResponseHead();
+            fail();
+        } catch (SocketTimeoutException expected) {
+        }
+        assertTrue(System.nanoTime() - start < 250 * 1000000L);
+    }
+
+    @Test
+    public void refusedStreamCanBeRetried() throws IOException {
+        connect();
+        Http2Stream stream = mConnection.newStream(GET, false, 0, 5000);
+        readFrame();
+        writeFrame(TYPE_RST_STREAM, 0, stream.id, ints(0x7));
+        try {
+            stream.awaitResponseHead();
+            fail();
+        } catch (IOException expected) {
+        }
+        assertTrue(stream.isRefused());
+    }
+
+    @Test
+    public void goAwayRefusesLaterStreams() throws IOException {
+        connect();
+        Http2Stream processed = mConnection.newStream(GET, false, 0, 5000);
+        Http2Stream later = mConnection.newStream(GET, false, 0, 5000);
+        readFrame();
+        readFrame();
+        writeFrame(TYPE_GOAWAY, 0, 0, ints(processed.id, 0));
+        try {
+            later.awaitResponseHead();
+            fail();
+        } catch (IOException expected) {
+        }
+        assertTrue(later.isRefused());
+        assertTrue(mConnection.isShutdown());
+        assertNull(mConnection.newStream(GET, false, 0, 5000));
+
+        // The processed stream still completes, then the connection closes.
+        writeHeaders(processed.id, true, ":status", "200");
+        processed.awaitResponseHead();
+        assertEquals(200, processed.getCode());
+        assertClosedByClient();
+    }
+
+    @Test
+    public void pushPromiseClosesTheConnection() throws IOException {
+        connect();
+        Http2Stream stream = mConnection.newStream(GET, false, 0, 5000);
+        readFrame();
+        writeFrame(TYPE_PUSH_PROMISE, FLAG_END_HEADERS, stream.id, ints(2));
+        try {
+            stream.awaitResponseHead();
+            fail();
+        } catch (IOException expected) {
+        }
+        assertFalse(stream.isRefused());
+        assertClosedByClient();
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2016-2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package pk.codebase.requests;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class HttpCacheTest {
+
+    private static final String URL = "http://example.com/resource";
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static HttpResponse response(int code, String cacheControl, byte[] content) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.put("Cache-Control", cacheControl);
+        return new HttpResponse(code, "", headers, content, URL, null);
+    }
+
+    @Test
+    public void errorResponsesKeepTheStoredEntry() throws Exception {
+        HttpCache cache = new HttpCache(mFolder.getRoot(), 1024 * 1024);
+        byte[] content = {1, 2, 3};
+        cache.put(URL, new HttpHeaders(), true, response(200, "max-age=60", content));
+        cache.put(URL, new HttpHeaders(), true, response(503, "no-store", new byte[0]));
+        HttpCache.Entry entry = cache.get(URL, new HttpHeaders(), true);
+        assertNotNull(entry);
+        assertArrayEquals(content, entry.content);
+    }
+
+    @Test
+    public void uncacheableOkResponsesEvictTheStoredEntry() throws Exception {
+        HttpCache cache = new HttpCache(mFolder.getRoot(), 1024 * 1024);
+        cache.put(URL, new HttpHeaders(), true, response(200, "max-age=60", new byte[]{1}));
+        cache.put(URL, new HttpHeaders(), true, response(200, "no-store", new byte[]{2}));
+        assertNull(cache.get(URL, new HttpHeaders(), true));
+    }
+
+    @Test
+    public void rawAndDecodedBodiesAreStoredApart() throws Exception {
+        HttpCache cache = new HttpCache(mFolder.getRoot(), 1024 * 1024);
+        byte[] raw = {31, -117, 8};
+        cache.put(URL, new HttpHeaders(), false, response(200, "max-age=60", raw));
+        assertNull(cache.get(URL, new HttpHeaders(), true));
+        assertArrayEquals(raw, cache.get(URL, new HttpHeaders(), false).content);
+    }
+}
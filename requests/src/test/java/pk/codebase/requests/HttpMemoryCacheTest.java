@@ -0,0 +1,71 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2016-2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package pk.codebase.requests;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class HttpMemoryCacheTest {
+
+    private static final String URL = "http://example.com/resource";
+
+    private static HttpHeaders cacheControl(String value) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.put("Cache-Control", value);
+        return headers;
+    }
+
+    private static HttpMemoryCache newCache(HttpResponse response) {
+        HttpMemoryCache cache = new HttpMemoryCache(1024 * 1024, 60000);
+        cache.put("GET", URL, new HttpHeaders(), response);
+        return cache;
+    }
+
+    @Test
+    public void noCacheRequestsSkipTheCache() {
+        HttpResponse response = new HttpResponse(200, "", new HttpHeaders(), new byte[1], URL, null);
+        HttpMemoryCache cache = newCache(response);
+        assertNull(cache.get("GET", URL, cacheControl("no-cache")));
+        assertNull(cache.get("GET", URL, cacheControl("max-age=0")));
+        assertSame(response, cache.get("GET", URL, new HttpHeaders()));
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void maxAgeCapsTheAgeOfTheResponse() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.put("Age", "30");
+        HttpResponse response = new HttpResponse(200, "", headers, new byte[1], URL, null);
+        HttpMemoryCache cache = newCache(response);
+        assertNull(cache.get("GET", URL, cacheControl("max-age=10")));
+        assertSame(response, cache.get("GET", URL, cacheControl("max-age=40")));
+    }
+
+    @Test
+    public void noStoreRequestsAreNotStored() {
+        HttpMemoryCache cache = new HttpMemoryCache(1024 * 1024, 60000);
+        cache.put("GET", URL, cacheControl("no-store"),
+                new HttpResponse(200, "", new HttpHeaders(), new byte[1], URL, null));
+        assertEquals(0, cache.getSize());
+    }
+}
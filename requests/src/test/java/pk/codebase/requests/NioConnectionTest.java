@@ -0,0 +1,143 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2016-2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package pk.codebase.requests;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class NioConnectionTest {
+
+    private NioEventLoop mLoop;
+    private ServerSocket mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mLoop = new NioEventLoop("Test NIO");
+        mServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mLoop.shutdown();
+        mServer.close();
+    }
+
+    private static ByteBuffer bytes(String text) {
+        return ByteBuffer.wrap(text.getBytes(NioExchange.ISO_8859_1));
+    }
+
+    private static String read(InputStream in, int length) throws IOException {
+        byte[] data = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int read = in.read(data, offset, length - offset);
+            if (read == -1) {
+                throw new IOException("Unexpected end of stream");
+            }
+            offset += read;
+        }
+        return new String(data, NioExchange.ISO_8859_1);
+    }
+
+    @Test
+    public void writeAfterLoopThreadWriteIsFlushed() throws Exception {
+        final NioConnection connection = new NioConnection(mLoop, "localhost",
+                mServer.getLocalPort(), null);
+        connection.connect(new InetSocketAddress[]{new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), mServer.getLocalPort())}, 5000);
+        Socket peer = mServer.accept();
+        try {
+            peer.setSoTimeout(5000);
+            // Answers from the loop thread, like an HTTP/2 SETTINGS or PING acknowledgement.
+            connection.setListener(new NioConnection.Listener() {
+                @Override
+                public void onData(ByteBuffer data) throws IOException {
+                    data.position(data.limit());
+                    connection.write(bytes("ack"));
+                }
+
+                @Override
+                public void onClosed(IOException cause) {
+                }
+            });
+            OutputStream out = peer.getOutputStream();
+            InputStream in = peer.getInputStream();
+            out.write('x');
+            out.flush();
+            assertEquals("ack", read(in, 3));
+
+            // Lets the loop go back to waiting on the selector before the next write.
+            Thread.sleep(200);
+            connection.write(bytes("request"));
+            assertEquals("request", read(in, 7));
+        } finally {
+            connection.close(new IOException("Closed"));
+            peer.close();
+        }
+    }
+
+    private static InetSocketAddress refusingAddress() throws IOException {
+        ServerSocket closed = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        closed.close();
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), closed.getLocalPort());
+    }
+
+    @Test
+    public void connectFallsBackToTheNextAddress() throws IOException {
+        NioConnection connection = new NioConnection(mLoop, "localhost",
+                mServer.getLocalPort(), null);
+        connection.connect(new InetSocketAddress[]{refusingAddress(), new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), mServer.getLocalPort())}, 5000);
+        Socket peer = mServer.accept();
+        try {
+            connection.write(bytes("request"));
+            peer.setSoTimeout(5000);
+            assertEquals("request", read(peer.getInputStream(), 7));
+        } finally {
+            connection.close(new IOException("Closed"));
+            peer.close();
+        }
+    }
+
+    @Test
+    public void connectReportsTheLastFailure() throws IOException {
+        NioConnection connection = new NioConnection(mLoop, "localhost", 0, null);
+        try {
+            connection.connect(new InetSocketAddress[]{refusingAddress(), refusingAddress()},
+                    5000);
+            fail();
+        } catch (ConnectException expected) {
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2016-2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package pk.codebase.requests;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class NioEventLoopTest {
+
+    private static class RecordingHandler implements NioEventLoop.Handler {
+        final CountDownLatch failed = new CountDownLatch(1);
+        volatile IOException failure;
+
+        @Override
+        public void onReady(SelectionKey key) {
+        }
+
+        @Override
+        public void onFailure(IOException e) {
+            failure = e;
+            failed.countDown();
+        }
+    }
+
+    private NioEventLoop mLoop;
+
+    @Before
+    public void setUp() throws IOException {
+        mLoop = new NioEventLoop("Test NIO");
+    }
+
+    @After
+    public void tearDown() {
+        mLoop.shutdown();
+    }
+
+    @Test
+    public void throwingTaskFailsOnlyItsHandler() throws InterruptedException {
+        RecordingHandler broken = new RecordingHandler();
+        RecordingHandler healthy = new RecordingHandler();
+        final CountDownLatch ran = new CountDownLatch(1);
+        mLoop.execute(broken, new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("broken");
+            }
+        });
+        mLoop.execute(healthy, new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        });
+        assertTrue(broken.failed.await(5, TimeUnit.SECONDS));
+        assertEquals(IllegalStateException.class, broken.failure.getCause().getClass());
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertNull(healthy.failure);
+    }
+
+    @Test
+    public void throwingFailureCallbackKeepsTheLoopRunning() throws InterruptedException {
+        NioEventLoop.Handler handler = new RecordingHandler() {
+            @Override
+            public void onFailure(IOException e) {
+                throw new IllegalStateException("listener");
+            }
+        };
+        mLoop.execute(handler, new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("broken");
+            }
+        });
+        final CountDownLatch ran = new CountDownLatch(1);
+        mLoop.execute(new RecordingHandler(), new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        });
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+    }
+}
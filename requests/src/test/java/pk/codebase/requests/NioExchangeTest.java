@@ -0,0 +1,82 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2016-2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package pk.codebase.requests;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class NioExchangeTest {
+
+    private static NioExchange newExchange() throws Exception {
+        return new NioExchange(new NioTransport(), new URL("http://example.com/"));
+    }
+
+    @Test
+    public void headerValuesWithLineBreaksAreRejected() throws Exception {
+        NioExchange exchange = newExchange();
+        exchange.setRequestProperty("X-Ok", "value");
+        for (String value : new String[]{"a\r\nX-Injected: 1", "a\nb", "a\rb"}) {
+            try {
+                exchange.setRequestProperty("X-Test", value);
+                fail(value);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void headerNamesWithLineBreaksAreRejected() throws Exception {
+        NioExchange exchange = newExchange();
+        try {
+            exchange.setRequestProperty("X-Test\r\nX-Injected", "value");
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void readTimeoutIsNotWaitedForTwice() throws Exception {
+        // Accepts connections into its backlog but never answers.
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        try {
+            HttpRequest request = new HttpRequest("http://127.0.0.1:" + server.getLocalPort());
+            request.setTransport(new NioTransport());
+            long start = System.nanoTime();
+            try {
+                request.execute("GET", "/", null, null, new HttpOptions(2000, 1000));
+                fail();
+            } catch (HttpError e) {
+                assertEquals(SocketTimeoutException.class, e.getCause().getClass());
+            }
+            long elapsed = (System.nanoTime() - start) / 1000000;
+            assertTrue("took " + elapsed + "ms", elapsed < 1800);
+        } finally {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Requests for Android
+ * Copyright (C) 2016-2019 CodeBasePK
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package pk.codebase.requests;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetryPolicyTest {
+
+    private static HttpError connectError(short code, Throwable cause) {
+        return new HttpError(code, HttpError.STAGE_CONNECTING, cause);
+    }
+
+    @Test
+    public void connectFailuresAreRetriedForAnyMethod() {
+        RetryPolicy policy = new RetryPolicy(3);
+        assertTrue(policy.shouldRetry("POST",
+                connectError(HttpError.CONNECTION_REFUSED, new IOException())));
+        assertTrue(policy.shouldRetry("POST",
+                connectError(HttpError.UNKNOWN, new IOException("Connection reset"))));
+    }
+
+    @Test
+    public void failuresBeforeAnyIoAreNotRetried() {
+        RetryPolicy policy = new RetryPolicy(3);
+        assertFalse(policy.shouldRetry("GET", connectError(HttpError.UNKNOWN,
+                new IllegalArgumentException("Illegal character(s) in message header"))));
+        assertFalse(policy.shouldRetry("GET",
+                connectError(HttpError.UNKNOWN, new IllegalStateException())));
+        assertFalse(policy.shouldRetry("GET",
+                connectError(HttpError.UNKNOWN, new UnknownHostException("nonexistent"))));
+    }
+}
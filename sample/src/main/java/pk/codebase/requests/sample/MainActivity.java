@@ -42,7 +42,7 @@ public class MainActivity extends AppCompatActivity {
         HttpRequest request = new HttpRequest();
         request.setOnResponseListener(response -> {
             if (response.code == HttpResponse.HTTP_OK) {
-                System.out.println(response.text);
+                System.out.println(response.getText());
             }
         });
         request.setOnErrorListener(error -> {